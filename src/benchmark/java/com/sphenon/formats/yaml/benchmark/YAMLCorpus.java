@@ -0,0 +1,101 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+   Deterministic synthetic YAML documents, so benchmarks run offline and
+   are comparable between runs. Documents resemble configuration models:
+   nested mappings with repeated keys, scalar sequences, numbers, booleans
+   and quoted strings.
+*/
+public class YAMLCorpus {
+
+    static public enum Size {
+        small  (1),
+        medium (100),
+        large  (10000);
+
+        // number of top level entries, each about 1 KB
+        public final int entries;
+
+        Size(int entries) { this.entries = entries; }
+    }
+
+    static protected final String[] WORDS = {
+        "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+        "india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa"
+    };
+
+    static public String generate(Size size) {
+        return generate(size.entries, 4711L);
+    }
+
+    static public String generate(int entries, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(entries * 1100);
+        sb.append("models:\n");
+        for (int e=0; e<entries; e++) {
+            sb.append("  - \"@Name\": model-").append(e).append('\n');
+            sb.append("    id: ").append(random.nextInt(1000000)).append('\n');
+            sb.append("    enabled: ").append(random.nextBoolean()).append('\n');
+            sb.append("    weight: ").append(random.nextInt(1000) / 10.0).append('\n');
+            sb.append("    description: \"").append(sentence(random, 8)).append("\"\n");
+            sb.append("    tags: [");
+            for (int t=0; t<5; t++) {
+                sb.append(t == 0 ? "" : ", ").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            sb.append("]\n");
+            sb.append("    properties:\n");
+            for (int p=0; p<8; p++) {
+                sb.append("      ").append(WORDS[p]).append(": ").append(sentence(random, 3)).append('\n');
+            }
+            sb.append("    children:\n");
+            for (int c=0; c<4; c++) {
+                sb.append("      - name: ").append(WORDS[random.nextInt(WORDS.length)]).append('-').append(c).append('\n');
+                sb.append("        value: ").append(random.nextInt(100000)).append('\n');
+                sb.append("        unit: ").append(WORDS[random.nextInt(4)]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    static protected String sentence(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int w=0; w<words; w++) {
+            sb.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    static public byte[] bytes(String document) {
+        return document.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static public File writeTemporaryFile(String document) throws IOException {
+        File file = File.createTempFile("yaml-benchmark-", ".yaml");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(document);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
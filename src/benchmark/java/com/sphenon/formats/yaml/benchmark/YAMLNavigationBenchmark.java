@@ -0,0 +1,79 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.formats.yaml.*;
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Wrapping and iteration cost over a node set built from the top level
+   sequence of a parsed corpus document.
+*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YAMLNavigationBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public YAMLCorpus.Size size;
+
+    protected CallContext context;
+    protected Vector<Object> members;
+
+    @Setup(Level.Trial)
+    public void setup() throws InvalidYAML {
+        this.context = RootContext.getRootContext();
+        YAMLNode document = YAMLNode.createYAMLNode(this.context, YAMLCorpus.generate(this.size));
+        this.members = new Vector<Object>((List<?>) ((Map<?,?>) document.getFirstNode(this.context)).get("models"));
+    }
+
+    // a new node set per invocation, so getNodes' cache is never reused
+    protected YAMLNode nodeSet() {
+        return new YAMLNode(this.context, this.members);
+    }
+
+    @Benchmark
+    public void getNodes(Blackhole blackhole) {
+        for (YAMLNode node : this.nodeSet().getNodes(this.context)) {
+            blackhole.consume(node.getFirstNode(this.context));
+        }
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (YAMLNode node : this.nodeSet().getIterable(this.context)) {
+            blackhole.consume(node.getFirstNode(this.context));
+        }
+    }
+
+    @Benchmark
+    public void iterateFlyweight(Blackhole blackhole) {
+        for (YAMLNode node : this.nodeSet().getFlyweightIterable(this.context)) {
+            blackhole.consume(node.getFirstNode(this.context));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.formats.yaml.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Node storage cost; run with "-prof gc" to compare the allocation rate
+   of the compact representation against the former one-vector-per-node
+   layout (the "legacy" benchmarks).
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YAMLNodeStorageBenchmark {
+
+    protected CallContext context;
+    protected Object singleton;
+    protected Vector<Object> multiple;
+    protected YAMLNode multiple_node;
+
+    @Param({"1000"})
+    public int size;
+
+    @Setup
+    public void setup() {
+        this.context = RootContext.getRootContext();
+        this.singleton = Collections.singletonMap("key", "value");
+        this.multiple = new Vector<Object>(this.size);
+        for (int i=0; i<this.size; i++) {
+            this.multiple.add("value-" + i);
+        }
+        this.multiple_node = new YAMLNode(this.context, this.multiple);
+    }
+
+    static protected Vector<Object> legacyMakeVector(Object node) {
+        Vector<Object> vector = new Vector<Object>();
+        vector.add(node);
+        return vector;
+    }
+
+    @Benchmark
+    public YAMLNode createSingleton() {
+        return new YAMLNode(this.context, this.singleton);
+    }
+
+    // wrapper plus the vector the former constructor allocated per node
+    @Benchmark
+    public void createSingletonLegacy(Blackhole blackhole) {
+        blackhole.consume(new YAMLNode(this.context, this.singleton));
+        blackhole.consume(legacyMakeVector(this.singleton));
+    }
+
+    @Benchmark
+    public void accessMultiple(Blackhole blackhole) {
+        int count = this.multiple_node.getNodeCount(this.context);
+        for (int i=0; i<count; i++) {
+            blackhole.consume(this.multiple_node.getYamlNode(this.context, i));
+        }
+    }
+
+    @Benchmark
+    public void accessMultipleLegacy(Blackhole blackhole) {
+        for (Object node : this.multiple) {
+            blackhole.consume(node);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.formats.yaml.*;
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+   createYAMLNode from String, InputStream and File. Throughput and
+   SampleTime (latency percentiles) modes; add "-prof gc" for allocation
+   rates.
+*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YAMLParseBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public YAMLCorpus.Size size;
+
+    protected CallContext context;
+    protected String document;
+    protected byte[] document_bytes;
+    protected File   document_file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.context = RootContext.getRootContext();
+        this.document = YAMLCorpus.generate(this.size);
+        this.document_bytes = YAMLCorpus.bytes(this.document);
+        this.document_file = YAMLCorpus.writeTemporaryFile(this.document);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.document_file.delete();
+    }
+
+    @Benchmark
+    public YAMLNode fromString() throws InvalidYAML {
+        return YAMLNode.createYAMLNode(this.context, this.document);
+    }
+
+    @Benchmark
+    public YAMLNode fromInputStream() throws InvalidYAML {
+        return YAMLNode.createYAMLNode(this.context, new ByteArrayInputStream(this.document_bytes));
+    }
+
+    @Benchmark
+    public YAMLNode fromFile() throws InvalidYAML {
+        return YAMLNode.createYAMLNode(this.context, this.document_file);
+    }
+}
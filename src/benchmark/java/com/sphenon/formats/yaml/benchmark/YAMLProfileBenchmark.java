@@ -0,0 +1,65 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.formats.yaml.*;
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+   createYAMLNode from String per loader profile: Full (SnakeYAML's
+   regular expression based resolver and constructor) versus Safe and
+   JSON (YAMLScalarResolver and YAMLSafeConstructor).
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YAMLProfileBenchmark {
+
+    @Param({"Full", "Safe", "JSON"})
+    public YAMLLoaderProfile profile;
+
+    @Param({"small", "medium", "large"})
+    public YAMLCorpus.Size size;
+
+    protected CallContext context;
+    protected String document;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.context = RootContext.getRootContext();
+        this.document = YAMLCorpus.generate(this.size);
+        YAMLNode.setLoaderProfile(this.context, this.profile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        YAMLNode.setLoaderProfile(this.context, YAMLLoaderProfile.Full);
+    }
+
+    @Benchmark
+    public YAMLNode parse() throws InvalidYAML {
+        return YAMLNode.createYAMLNode(this.context, this.document);
+    }
+}
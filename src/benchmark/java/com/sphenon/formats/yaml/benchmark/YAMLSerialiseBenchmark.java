@@ -0,0 +1,90 @@
+package com.sphenon.formats.yaml.benchmark;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.formats.yaml.*;
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.Yaml;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Serialisation of a parsed corpus document: a fresh Yaml instance
+   dumping to an intermediate string, as callers did before, versus
+   YAMLNode.serialise with a pooled instance writing to the target.
+*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YAMLSerialiseBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public YAMLCorpus.Size size;
+
+    protected CallContext context;
+    protected YAMLNode document;
+    protected Writer writer;
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole blackhole) throws InvalidYAML {
+        this.context = RootContext.getRootContext();
+        this.document = YAMLNode.createYAMLNode(this.context, YAMLCorpus.generate(this.size));
+        this.writer = new BlackholeWriter(blackhole);
+    }
+
+    @Benchmark
+    public void dumpNaive() throws IOException {
+        this.writer.write(new Yaml().dump(this.document.getFirstNode(this.context)));
+    }
+
+    @Benchmark
+    public void serialise() {
+        this.document.serialise(this.context, this.writer);
+    }
+
+    static protected class BlackholeWriter extends Writer {
+        protected Blackhole blackhole;
+
+        protected BlackholeWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        public void write(char[] buffer, int offset, int length) {
+            this.blackhole.consume(buffer);
+            this.blackhole.consume(length);
+        }
+
+        public void write(String string) {
+            this.blackhole.consume(string);
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+   Decodes a byte buffer, e.g. a mapped file, directly into the caller's
+   char array, without intermediate stream buffers.
+
+   Like SnakeYAML's UnicodeReader, the encoding is taken from a byte
+   order mark if present, otherwise UTF-8 is assumed; malformed input is
+   reported, not replaced.
+*/
+public class ByteBufferReader extends Reader {
+
+    protected ByteBuffer     bytes;
+    protected CharsetDecoder decoder;
+    protected boolean        flushed;
+
+    public ByteBufferReader (ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.decoder = detectCharset(bytes).newDecoder()
+                           .onMalformedInput(CodingErrorAction.REPORT)
+                           .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    static protected Charset detectCharset (ByteBuffer bytes) {
+        int p = bytes.position();
+        int r = bytes.remaining();
+        if (r >= 3 && (bytes.get(p) & 0xFF) == 0xEF && (bytes.get(p+1) & 0xFF) == 0xBB && (bytes.get(p+2) & 0xFF) == 0xBF) {
+            bytes.position(p + 3);
+            return StandardCharsets.UTF_8;
+        }
+        if (r >= 2 && (bytes.get(p) & 0xFF) == 0xFE && (bytes.get(p+1) & 0xFF) == 0xFF) {
+            bytes.position(p + 2);
+            return StandardCharsets.UTF_16BE;
+        }
+        if (r >= 2 && (bytes.get(p) & 0xFF) == 0xFF && (bytes.get(p+1) & 0xFF) == 0xFE) {
+            bytes.position(p + 2);
+            return StandardCharsets.UTF_16LE;
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    public int read (char[] buffer, int offset, int length) throws IOException {
+        if (this.bytes == null) { throw new IOException("Reader closed"); }
+        if (length == 0) { return 0; }
+        CharBuffer target = CharBuffer.wrap(buffer, offset, length);
+        CoderResult result;
+        if (this.bytes.hasRemaining()) {
+            result = this.decoder.decode(this.bytes, target, true);
+            if (result.isError()) { result.throwException(); }
+        }
+        if (this.bytes.hasRemaining() == false && this.flushed == false) {
+            result = this.decoder.flush(target);
+            if (result.isOverflow() == false) { this.flushed = true; }
+        }
+        int count = target.position() - offset;
+        return (count == 0 && this.flushed ? -1 : count);
+    }
+
+    public void close () {
+        this.bytes = null;
+    }
+}
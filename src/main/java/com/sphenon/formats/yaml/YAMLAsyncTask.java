@@ -0,0 +1,171 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+   Parses YAML in the background, as returned by the
+   {@link YAMLNode#createYAMLNodeAsync} factories.
+   Files are loaded like by {@link YAMLNode#createYAMLNode(CallContext, Path)},
+   i.e. from the document cache or snapshots, as configured, but never
+   lazily: lazy trees are read without the abortable reader and would
+   defer the parsing to the caller's thread anyway.
+
+   Invalid YAML completes the future exceptionally with {@link InvalidYAML}.
+   Cancelling the future, or exceeding the timeout, which completes it
+   with a {@link TimeoutException}, also stops the parser: its input is
+   read through a reader which fails once the task is aborted, and an
+   input stream is closed, so a blocked read returns as well.
+*/
+public class YAMLAsyncTask extends CompletableFuture<YAMLNode> implements Runnable {
+    static final public Class _class = YAMLAsyncTask.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    protected CallContext      context;
+    protected InputStream      input_stream;
+    protected Path             path;
+    protected volatile boolean aborted;
+    protected ScheduledFuture<?> timeout;
+
+    protected YAMLAsyncTask (CallContext context, InputStream input_stream, Path path) {
+        this.context      = context;
+        this.input_stream = input_stream;
+        this.path         = path;
+    }
+
+    /**
+       Starts parsing the stream, which is closed afterwards, on the
+       executor. A timeout of zero or less means none.
+    */
+    static public YAMLAsyncTask start (CallContext context, InputStream input_stream, Executor executor, long timeout, TimeUnit unit) {
+        return start(new YAMLAsyncTask(context, input_stream, null), executor, timeout, unit);
+    }
+
+    static public YAMLAsyncTask start (CallContext context, Path path, Executor executor, long timeout, TimeUnit unit) {
+        return start(new YAMLAsyncTask(context, null, path), executor, timeout, unit);
+    }
+
+    static protected YAMLAsyncTask start (YAMLAsyncTask task, Executor executor, long timeout, TimeUnit unit) {
+        if (timeout > 0) {
+            task.scheduleTimeout(timeout, unit);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            task.abort(ree);
+        }
+        return task;
+    }
+
+    protected void scheduleTimeout (final long timeout, final TimeUnit unit) {
+        this.timeout = YAMLExecutors.getTimer(this.context).schedule(new Runnable() {
+            public void run() {
+                if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "Asynchronous YAML parsing of '%(source)' timed out after '%(timeout)' '%(unit)'", "source", getSource(), "timeout", timeout, "unit", unit); }
+                abort(new TimeoutException("YAML parsing timed out after " + timeout + " " + unit));
+            }
+        }, timeout, unit);
+    }
+
+    protected String getSource () {
+        return (this.path == null ? "stream" : this.path.toString());
+    }
+
+    public void run () {
+        if (this.isDone()) { return; }
+        Context task_context = Context.create(this.context);
+        try {
+            if (this.path != null && YAMLDocumentCache.isEnabled()) {
+                this.complete(YAMLDocumentCache.getYAMLNode(task_context, this.path));
+                return;
+            }
+            if (this.path != null) {
+                this.complete(new YAMLNode(task_context, YAMLNode.loadYAML(task_context, this.path, false, new java.util.function.UnaryOperator<Reader>() {
+                    public Reader apply(Reader reader) { return new AbortableReader(reader); }
+                })));
+            } else {
+                long start = YAMLMetrics.start();
+                Reader reader = new UnicodeReader(YAMLMetrics.countBytes(YAMLMetrics.Kind.Stream, YAMLLimits.getCurrent(task_context).limit(this.input_stream)));
+                this.complete(new YAMLNode(task_context, YAMLNode.parseYAML(task_context, new AbortableReader(reader), this.getSource(), YAMLMetrics.Kind.Stream, start, -1)));
+            }
+        } catch (InvalidYAML iy) {
+            this.completeExceptionally(iy);
+        } catch (Throwable t) {
+            this.completeExceptionally(t);
+        } finally {
+            this.closeInput();
+            if (this.timeout != null) { this.timeout.cancel(false); }
+        }
+    }
+
+    public boolean cancel (boolean may_interrupt_if_running) {
+        boolean cancelled = super.cancel(may_interrupt_if_running);
+        this.stop();
+        return cancelled;
+    }
+
+    protected void abort (Throwable reason) {
+        this.completeExceptionally(reason);
+        this.stop();
+    }
+
+    protected void stop () {
+        this.aborted = true;
+        this.closeInput();
+        if (this.timeout != null) { this.timeout.cancel(false); }
+    }
+
+    protected void closeInput () {
+        InputStream stream = this.input_stream;
+        if (stream == null) { return; }
+        try {
+            stream.close();
+        } catch (IOException ioe) {
+            if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(this.context)).sendTrace(this.context, Notifier.VERBOSE, "Could not close stream after asynchronous YAML parsing: %(reason)", "reason", ioe); }
+        }
+    }
+
+    protected class AbortableReader extends FilterReader {
+        protected AbortableReader (Reader reader) {
+            super(reader);
+        }
+
+        public int read (char[] buffer, int offset, int length) throws IOException {
+            if (aborted) { throw new InterruptedIOException("YAML parsing aborted"); }
+            return super.read(buffer, offset, length);
+        }
+
+        public int read () throws IOException {
+            if (aborted) { throw new InterruptedIOException("YAML parsing aborted"); }
+            return super.read();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+   Parses many YAML files in parallel.
+
+   Each file is parsed by a task of its own with a context derived from
+   the caller's one; parser instances come from {@link YAMLParserPool},
+   so with the default per thread pool each worker reuses its parser.
+   A file which cannot be parsed does not abort the batch, its problem
+   is collected in the result instead. With interning scoped per batch,
+   all files of a batch share one {@link YAMLInternTable}.
+
+   Without an explicit executor, {@link YAMLExecutors#getDefaultExecutor}
+   is used.
+*/
+public class YAMLBatchLoader {
+    static final public Class _class = YAMLBatchLoader.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    /**
+       Outcome of a batch; all maps are in the order of the requested
+       files. Each file is contained in exactly one of them.
+    */
+    static public class Result {
+        protected Map<Path,YAMLNode>    nodes    = new LinkedHashMap<Path,YAMLNode>();
+        protected Map<Path,InvalidYAML> failures = new LinkedHashMap<Path,InvalidYAML>();
+        protected Map<Path,Throwable>   errors   = new LinkedHashMap<Path,Throwable>();
+
+        public Map<Path,YAMLNode> getNodes (CallContext context) {
+            return this.nodes;
+        }
+
+        /**
+           Files with invalid YAML content.
+        */
+        public Map<Path,InvalidYAML> getFailures (CallContext context) {
+            return this.failures;
+        }
+
+        /**
+           Files which could not be read, e.g. missing or inaccessible ones.
+        */
+        public Map<Path,Throwable> getErrors (CallContext context) {
+            return this.errors;
+        }
+
+        public boolean isComplete (CallContext context) {
+            return this.failures.isEmpty() && this.errors.isEmpty();
+        }
+    }
+
+    static public Result load (CallContext context, Collection<Path> files) {
+        return load(context, files, YAMLExecutors.getDefaultExecutor(context));
+    }
+
+    static public Result loadFiles (CallContext context, Collection<File> files) {
+        List<Path> paths = new ArrayList<Path>(files.size());
+        for (File file : files) { paths.add(file.toPath()); }
+        return load(context, paths);
+    }
+
+    /**
+       Loads all files below the directory whose relative path matches the
+       glob pattern, e.g. "*.yaml" for the directory itself, or
+       "{,**&#47;}*.yaml" to include subdirectories.
+    */
+    static public Result load (CallContext context, Path directory, String glob) {
+        return load(context, directory, glob, YAMLExecutors.getDefaultExecutor(context));
+    }
+
+    static public Result load (CallContext context, Path directory, String glob, ExecutorService executor) {
+        return load(context, findFiles(context, directory, glob), executor);
+    }
+
+    static public List<Path> findFiles (CallContext context, final Path directory, String glob) {
+        final PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+        final List<Path> files = new ArrayList<Path>();
+        try {
+            // patterns without separators cannot match within subdirectories
+            int depth = (glob.indexOf('/') == -1 && glob.indexOf("**") == -1 ? 1 : Integer.MAX_VALUE);
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && matcher.matches(directory.relativize(file))) { files.add(file); }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not list YAML files in '%(directory)'", "directory", directory);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static public Result load (final CallContext context, Collection<Path> files, ExecutorService executor) {
+        long start = System.nanoTime();
+
+        final Path[]      paths    = files.toArray(new Path[files.size()]);
+        final Object[]    outcomes = new Object[paths.length];
+        final YAMLInternTable intern_table = YAMLInternTable.createBatchTable(context);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            final int index = i;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    // results go to distinct slots, so workers never contend
+                    Context worker_context = Context.create(context);
+                    YAMLInternTable previous = YAMLInternTable.enterBatch(intern_table);
+                    try {
+                        outcomes[index] = YAMLNode.createYAMLNode(worker_context, paths[index]);
+                    } catch (InvalidYAML iy) {
+                        outcomes[index] = iy;
+                    } catch (RuntimeException re) {
+                        outcomes[index] = re;
+                    } catch (Error error) {
+                        outcomes[index] = error;
+                    } finally {
+                        YAMLInternTable.leaveBatch(previous);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ie, "Loading of YAML file batch interrupted");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+
+        Result result = new Result();
+        for (int i = 0; i < paths.length; i++) {
+            Object outcome = outcomes[i];
+            if (outcome instanceof YAMLNode) {
+                result.nodes.put(paths[i], (YAMLNode) outcome);
+            } else if (outcome instanceof InvalidYAML) {
+                result.failures.put(paths[i], (InvalidYAML) outcome);
+            } else {
+                result.errors.put(paths[i], (Throwable) outcome);
+            }
+        }
+
+        if (intern_table != null) { intern_table.batchDone(context); }
+
+        if ((notification_level & Notifier.CHECKPOINT) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.CHECKPOINT, "Loaded '%(count)' YAML files in '%(millis)' ms, '%(failures)' invalid, '%(errors)' unreadable", "count", paths.length, "millis", (System.nanoTime() - start) / 1000000L, "failures", result.failures.size(), "errors", result.errors.size()); }
+
+        return result;
+    }
+}
@@ -0,0 +1,197 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+   Operations over all nodes of a node set, as used by
+   {@link YAMLNode#filter}, {@link YAMLNode#map}, {@link YAMLNode#project}
+   and {@link YAMLNode#flatten}.
+
+   Node sets with at least "com.sphenon.formats.yaml.ParallelThreshold"
+   nodes (default 8192) are split into ranges processed on
+   {@link YAMLExecutors#getForkJoinPool}; smaller ones are processed in
+   the calling thread. Results keep the order of the nodes either way,
+   together with the keys of mapping values. Functions and predicates
+   passed in must therefore be safe to call concurrently.
+*/
+public class YAMLBulkOperations {
+    static final public Class _class = YAMLBulkOperations.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected volatile int threshold;
+    static { threshold = YAMLPackageInitialiser.getConfiguration().get(RootContext.getInitialisationContext(), "ParallelThreshold", 8192); };
+
+    static public void setThreshold (CallContext context, int new_threshold) {
+        threshold = new_threshold;
+    }
+
+    static public int getThreshold () {
+        return threshold;
+    }
+
+    /**
+       Appends the results for one node to the output.
+    */
+    static protected interface Operation {
+        public void apply(Object node, Object key, Output output);
+    }
+
+    static protected class Output {
+        protected Object[] values;
+        protected Object[] keys;
+        protected int      count;
+
+        protected Output (int capacity) {
+            this.values = new Object[Math.max(capacity, 4)];
+            this.keys   = new Object[this.values.length];
+        }
+
+        protected void add (Object value, Object key) {
+            if (this.count == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+                this.keys   = Arrays.copyOf(this.keys,   this.count * 2);
+            }
+            this.keys[this.count]     = key;
+            this.values[this.count++] = value;
+        }
+
+        protected void addAll (Output other) {
+            if (this.count + other.count > this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.count + other.count);
+                this.keys   = Arrays.copyOf(this.keys,   this.count + other.count);
+            }
+            System.arraycopy(other.values, 0, this.values, this.count, other.count);
+            System.arraycopy(other.keys,   0, this.keys,   this.count, other.count);
+            this.count += other.count;
+        }
+    }
+
+    static protected class Task extends RecursiveTask<Output> {
+        static final private long serialVersionUID = 1L;
+
+        protected YAMLNode  node_set;
+        protected Operation operation;
+        protected int       from;
+        protected int       to;
+        protected int       chunk;
+
+        protected Task (YAMLNode node_set, Operation operation, int from, int to, int chunk) {
+            this.node_set  = node_set;
+            this.operation = operation;
+            this.from      = from;
+            this.to        = to;
+            this.chunk     = chunk;
+        }
+
+        protected Output compute () {
+            if (this.to - this.from <= this.chunk) {
+                return run(this.node_set, this.operation, this.from, this.to);
+            }
+            int middle = (this.from + this.to) >>> 1;
+            Task right = new Task(this.node_set, this.operation, middle, this.to, this.chunk);
+            right.fork();
+            Output result = new Task(this.node_set, this.operation, this.from, middle, this.chunk).compute();
+            result.addAll(right.join());
+            return result;
+        }
+    }
+
+    static protected Output run (YAMLNode node_set, Operation operation, int from, int to) {
+        Output output = new Output(to - from);
+        for (int i = from; i < to; i++) {
+            operation.apply(node_set.getNode(i), node_set.getNodeKey(i), output);
+        }
+        return output;
+    }
+
+    static protected YAMLNode apply (CallContext context, YAMLNode node_set, Operation operation) {
+        int count = node_set.node_count;
+        Output output;
+        if (count < threshold || count < 2) {
+            output = run(node_set, operation, 0, count);
+        } else {
+            ForkJoinPool pool = YAMLExecutors.getForkJoinPool(context);
+            int chunk = Math.max(1024, count / (pool.getParallelism() * 4));
+            output = pool.invoke(new Task(node_set, operation, 0, count, chunk));
+            if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "Processed '%(count)' YAML nodes in parallel, chunks of '%(chunk)'", "count", count, "chunk", chunk); }
+        }
+        return YAMLNode.createNodeSet(context, output.values, output.keys, output.count);
+    }
+
+    static public YAMLNode filter (CallContext context, YAMLNode node_set, final Predicate<Object> predicate) {
+        return apply(context, node_set, new Operation() {
+            public void apply(Object node, Object key, Output output) {
+                if (predicate.test(node)) { output.add(node, key); }
+            }
+        });
+    }
+
+    static public YAMLNode map (CallContext context, YAMLNode node_set, final Function<Object,Object> function) {
+        return apply(context, node_set, new Operation() {
+            public void apply(Object node, Object key, Output output) {
+                output.add(function.apply(node), key);
+            }
+        });
+    }
+
+    static public YAMLNode project (CallContext context, YAMLNode node_set, final Object... keys) {
+        return apply(context, node_set, new Operation() {
+            public void apply(Object node, Object key, Output output) {
+                if ((node instanceof Map) == false) { return; }
+                Map<?,?> map = (Map<?,?>) node;
+                LinkedHashMap<Object,Object> projection = new LinkedHashMap<Object,Object>(keys.length * 4 / 3 + 1);
+                for (Object field : keys) {
+                    Object value = map.get(field);
+                    if (value != null || map.containsKey(field)) { projection.put(field, value); }
+                }
+                output.add(projection, key);
+            }
+        });
+    }
+
+    static public YAMLNode flatten (CallContext context, YAMLNode node_set) {
+        return apply(context, node_set, new Operation() {
+            public void apply(Object node, Object key, Output output) {
+                if (node instanceof Map) {
+                    for (Map.Entry<?,?> entry : ((Map<?,?>) node).entrySet()) {
+                        output.add(entry.getValue(), entry.getKey());
+                    }
+                } else if (node instanceof Collection) {
+                    for (Object element : (Collection<?>) node) {
+                        output.add(element, null);
+                    }
+                }
+            }
+        });
+    }
+}
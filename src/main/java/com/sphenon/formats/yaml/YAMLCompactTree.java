@@ -0,0 +1,428 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.*;
+
+/**
+   Compact, immutable representation of parsed YAML trees.
+
+   SnakeYAML builds LinkedHashMaps, ArrayLists and boxed scalars, which
+   take several times the size of the source on the heap. Compaction
+   replaces them by array backed implementations of the same interfaces,
+   so code working on Map and List is not affected:
+
+   - mappings keep keys and values interleaved in a single array, found
+     by linear scan up to {@link #LINEAR_LIMIT} entries and via an open
+     addressing hash index above
+   - sequences are backed by an exactly sized array, or, if they hold
+     only integers, longs or doubles, by a primitive array (elements are
+     boxed on access)
+   - equal keys and scalars within a tree are shared, strings also via
+     the {@link YAMLInternTable} if one is passed
+
+   Order, aliases and recursive structures are preserved; all collections
+   are unmodifiable and may be shared between threads once the tree is
+   published, e.g. via the returned YAMLNode.
+
+   Parsing compacts its results if configuration property
+   "com.sphenon.formats.yaml.CompactTrees" is true (default false).
+*/
+public class YAMLCompactTree {
+    static final public Class _class = YAMLCompactTree.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static final public int LINEAR_LIMIT = 8;
+
+    static protected volatile boolean enabled;
+    static { enabled = YAMLPackageInitialiser.getConfiguration().get(RootContext.getInitialisationContext(), "CompactTrees", false); };
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    static public void setEnabled (CallContext context, boolean new_enabled) {
+        enabled = new_enabled;
+        YAMLDocumentCache.settingsChanged(context);
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML compact trees '%(enabled)'", "enabled", new_enabled); }
+    }
+
+    /**
+       Marks collections created by compaction.
+    */
+    static public interface Compact {
+    }
+
+    static public boolean isCompact (Object node) {
+        return node instanceof Compact;
+    }
+
+    /**
+       Returns a compact copy of the tree, or the tree itself if it is a
+       scalar or already compact.
+    */
+    static public Object compact (CallContext context, Object tree) {
+        return compact(context, tree, null);
+    }
+
+    static public Object compact (CallContext context, Object tree, YAMLInternTable intern_table) {
+        if ((tree instanceof Map || tree instanceof List || tree instanceof Set) == false || tree instanceof Compact) {
+            return (intern_table == null ? tree : intern_table.internScalar(tree));
+        }
+        return new Compactor(intern_table).compact(tree);
+    }
+
+    static protected class Compactor {
+        protected IdentityHashMap<Object,Object> done    = new IdentityHashMap<Object,Object>();
+        protected HashMap<Object,Object>         scalars = new HashMap<Object,Object>();
+        protected YAMLInternTable                intern_table;
+
+        protected Compactor (YAMLInternTable intern_table) {
+            this.intern_table = intern_table;
+        }
+
+        protected Object compact (Object node) {
+            if (node instanceof YAMLMergeOverlay) {
+                Object result = this.done.get(node);
+                return (result != null ? result : this.compactOverlay((YAMLMergeOverlay) node));
+            }
+            if (node instanceof Map) {
+                Object result = this.done.get(node);
+                return (result != null ? result : this.compactMap((Map<?,?>) node));
+            }
+            if (node instanceof List) {
+                Object result = this.done.get(node);
+                return (result != null ? result : this.compactList((List<?>) node));
+            }
+            if (node instanceof Set) {
+                Object result = this.done.get(node);
+                return (result != null ? result : this.compactSet((Set<?>) node));
+            }
+            return this.share(node);
+        }
+
+        protected Object shareKey (Object key) {
+            return (this.intern_table != null && key instanceof String ? this.intern_table.internKey((String) key) : this.compact(key));
+        }
+
+        protected Object share (Object scalar) {
+            if (this.intern_table != null && scalar instanceof String) {
+                Object interned = this.intern_table.internScalar(scalar);
+                if (interned != scalar) { return interned; }
+            }
+            if (scalar instanceof String || scalar instanceof Number) {
+                Object shared = this.scalars.get(scalar);
+                if (shared != null) { return shared; }
+                this.scalars.put(scalar, scalar);
+            }
+            return scalar;
+        }
+
+        protected Object compactMap (Map<?,?> map) {
+            int size = map.size();
+            if (size == 0) {
+                this.done.put(map, CompactMap.EMPTY);
+                return CompactMap.EMPTY;
+            }
+            Object[] entries = new Object[2 * size];
+            int i = 0;
+            for (Object key : map.keySet()) {
+                entries[i] = this.shareKey(key);
+                i += 2;
+            }
+            // indexed by its keys, registered before the values, so
+            // recursive references resolve
+            CompactMap result = new CompactMap(entries);
+            this.done.put(map, result);
+            i = 1;
+            for (Object value : map.values()) {
+                entries[i] = this.compact(value);
+                i += 2;
+            }
+            return result;
+        }
+
+        /**
+           Keeps the overlay, so merged bases stay shared.
+        */
+        protected Object compactOverlay (YAMLMergeOverlay overlay) {
+            Map<?,?>[] bases = overlay.bases.clone();
+            YAMLMergeOverlay result = new YAMLMergeOverlay(overlay.leading, overlay.own, bases);
+            this.done.put(overlay, result);
+            result.leading = (Map<?,?>) this.compact(overlay.leading);
+            result.own     = (Map<?,?>) this.compact(overlay.own);
+            for (int b = 0; b < bases.length; b++) { bases[b] = (Map<?,?>) this.compact(bases[b]); }
+            return result;
+        }
+
+        protected Object compactList (List<?> list) {
+            int size = list.size();
+            if (size == 0) {
+                this.done.put(list, CompactList.EMPTY);
+                return CompactList.EMPTY;
+            }
+            Object result = compactNumbers(list);
+            if (result != null) {
+                this.done.put(list, result);
+                return result;
+            }
+            Object[] elements = new Object[size];
+            result = new CompactList(elements);
+            this.done.put(list, result);
+            int i = 0;
+            for (Object element : list) {
+                elements[i++] = this.compact(element);
+            }
+            return result;
+        }
+
+        protected Object compactSet (Set<?> set) {
+            LinkedHashSet<Object> elements = new LinkedHashSet<Object>(set.size() * 4 / 3 + 1);
+            Set<Object> result = new CompactSet(elements);
+            this.done.put(set, result);
+            for (Object element : set) {
+                elements.add(this.compact(element));
+            }
+            return result;
+        }
+    }
+
+    /**
+       Returns a primitive backed list if all elements are of the same
+       numeric type (Integer, Long or Double), else null.
+    */
+    static protected Object compactNumbers (List<?> list) {
+        Class<?> type = list.get(0) == null ? null : list.get(0).getClass();
+        if (type != Integer.class && type != Long.class && type != Double.class) { return null; }
+        for (Object element : list) {
+            if (element == null || element.getClass() != type) { return null; }
+        }
+        int size = list.size();
+        int i = 0;
+        if (type == Integer.class) {
+            int[] values = new int[size];
+            for (Object element : list) { values[i++] = ((Integer) element).intValue(); }
+            return new CompactIntList(values);
+        }
+        if (type == Long.class) {
+            long[] values = new long[size];
+            for (Object element : list) { values[i++] = ((Long) element).longValue(); }
+            return new CompactLongList(values);
+        }
+        double[] values = new double[size];
+        for (Object element : list) { values[i++] = ((Double) element).doubleValue(); }
+        return new CompactDoubleList(values);
+    }
+
+    static public class CompactMap extends AbstractMap<Object,Object> implements Compact {
+        static final public CompactMap EMPTY = new CompactMap(new Object[0]);
+
+        // key, value, key, value, ...
+        protected final Object[] entries;
+        // entry number + 1 by hash slot, null if linear scan suffices
+        protected final int[]    index;
+
+        /**
+           The keys must be in place, values may follow.
+        */
+        protected CompactMap (Object[] entries) {
+            this.entries = entries;
+            this.index   = createIndex(entries);
+        }
+
+        static protected int[] createIndex (Object[] entries) {
+            int size = entries.length / 2;
+            if (size <= LINEAR_LIMIT) { return null; }
+            int capacity = Integer.highestOneBit(size * 2 - 1) << 1;
+            int[] index = new int[capacity];
+            for (int e = 0; e < size; e++) {
+                int slot = hash(entries[2 * e]) & (capacity - 1);
+                while (index[slot] != 0) { slot = (slot + 1) & (capacity - 1); }
+                index[slot] = e + 1;
+            }
+            return index;
+        }
+
+        static protected int hash (Object key) {
+            int h = (key == null ? 0 : key.hashCode());
+            return h ^ (h >>> 16);
+        }
+
+        protected int find (Object key) {
+            Object[] e = this.entries;
+            if (this.index == null) {
+                for (int i = 0; i < e.length; i += 2) {
+                    if (key == null ? e[i] == null : key.equals(e[i])) { return i; }
+                }
+                return -1;
+            }
+            int mask = this.index.length - 1;
+            for (int slot = hash(key) & mask; this.index[slot] != 0; slot = (slot + 1) & mask) {
+                int i = 2 * (this.index[slot] - 1);
+                if (key == null ? e[i] == null : key.equals(e[i])) { return i; }
+            }
+            return -1;
+        }
+
+        public int size () {
+            return this.entries.length / 2;
+        }
+
+        public Object get (Object key) {
+            int i = this.find(key);
+            return (i == -1 ? null : this.entries[i + 1]);
+        }
+
+        public boolean containsKey (Object key) {
+            return this.find(key) != -1;
+        }
+
+        public Set<Map.Entry<Object,Object>> entrySet () {
+            return new AbstractSet<Map.Entry<Object,Object>>() {
+                public int size() {
+                    return CompactMap.this.size();
+                }
+                public Iterator<Map.Entry<Object,Object>> iterator() {
+                    return new Iterator<Map.Entry<Object,Object>>() {
+                        protected int i;
+                        public boolean hasNext() {
+                            return this.i < entries.length;
+                        }
+                        public Map.Entry<Object,Object> next() {
+                            if (this.i >= entries.length) { throw new NoSuchElementException(); }
+                            Map.Entry<Object,Object> entry = new AbstractMap.SimpleImmutableEntry<Object,Object>(entries[this.i], entries[this.i + 1]);
+                            this.i += 2;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    static public class CompactList extends AbstractList<Object> implements RandomAccess, Compact {
+        static final public CompactList EMPTY = new CompactList(new Object[0]);
+
+        protected final Object[] elements;
+
+        protected CompactList (Object[] elements) {
+            this.elements = elements;
+        }
+
+        public Object get (int index) {
+            return this.elements[index];
+        }
+
+        public int size () {
+            return this.elements.length;
+        }
+
+        public Object[] toArray () {
+            return this.elements.clone();
+        }
+    }
+
+    static public class CompactIntList extends AbstractList<Object> implements RandomAccess, Compact {
+        protected final int[] values;
+
+        protected CompactIntList (int[] values) {
+            this.values = values;
+        }
+
+        public Object get (int index) {
+            return Integer.valueOf(this.values[index]);
+        }
+
+        public int getInt (int index) {
+            return this.values[index];
+        }
+
+        public int size () {
+            return this.values.length;
+        }
+    }
+
+    static public class CompactLongList extends AbstractList<Object> implements RandomAccess, Compact {
+        protected final long[] values;
+
+        protected CompactLongList (long[] values) {
+            this.values = values;
+        }
+
+        public Object get (int index) {
+            return Long.valueOf(this.values[index]);
+        }
+
+        public long getLong (int index) {
+            return this.values[index];
+        }
+
+        public int size () {
+            return this.values.length;
+        }
+    }
+
+    static public class CompactDoubleList extends AbstractList<Object> implements RandomAccess, Compact {
+        protected final double[] values;
+
+        protected CompactDoubleList (double[] values) {
+            this.values = values;
+        }
+
+        public Object get (int index) {
+            return Double.valueOf(this.values[index]);
+        }
+
+        public double getDouble (int index) {
+            return this.values[index];
+        }
+
+        public int size () {
+            return this.values.length;
+        }
+    }
+
+    static public class CompactSet extends AbstractSet<Object> implements Compact {
+        protected final Set<Object> elements;
+
+        protected CompactSet (Set<Object> elements) {
+            this.elements = elements;
+        }
+
+        public Iterator<Object> iterator () {
+            return Collections.unmodifiableSet(this.elements).iterator();
+        }
+
+        public boolean contains (Object element) {
+            return this.elements.contains(element);
+        }
+
+        public int size () {
+            return this.elements.size();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.nodes.MappingNode;
+import org.yaml.snakeyaml.nodes.Node;
+
+import java.util.Map;
+
+/**
+   SnakeYAML's full Constructor, optionally constructing mappings with
+   merge keys as {@link YAMLMergeOverlay}.
+*/
+public class YAMLConstructor extends Constructor {
+
+    protected boolean share_merges;
+
+    protected YAMLMergeOverlay.Constructor merge_steps = new YAMLMergeOverlay.Constructor() {
+        public Map<Object,Object> createDefaultMap (int size) {
+            return YAMLConstructor.this.createDefaultMap(size);
+        }
+        public void constructMapping2ndStep (MappingNode node, Map<Object,Object> mapping) {
+            YAMLConstructor.this.constructMapping2ndStep(node, mapping);
+        }
+        public Object constructObject (Node node) {
+            return YAMLConstructor.this.constructObject(node);
+        }
+    };
+
+    public YAMLConstructor (boolean share_merges) {
+        this.share_merges = share_merges;
+    }
+
+    protected Map<Object,Object> constructMapping (MappingNode node) {
+        YAMLMergeOverlay overlay = (this.share_merges ? YAMLMergeOverlay.construct(node, this.merge_steps) : null);
+        return (overlay != null ? overlay : super.constructMapping(node));
+    }
+}
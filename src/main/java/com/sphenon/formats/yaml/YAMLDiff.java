@@ -0,0 +1,161 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.*;
+
+/**
+   Structural difference between two parsed YAML trees.
+
+   Mappings are compared by key, sequences by position (so an element
+   inserted in the middle changes all following positions), everything
+   else by equality. A change is reported at the outermost path where
+   the trees differ, with paths written like those of
+   {@link YAMLEventReader#getPath}, e.g. <code>$.models[3].id</code>.
+   Subtrees shared by both trees, as with the document cache, are
+   skipped without descending.
+*/
+public class YAMLDiff {
+    static final public Class _class = YAMLDiff.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public enum Kind { Added, Removed, Changed };
+
+    static public class Change {
+        protected Kind   kind;
+        protected String path;
+        protected Object old_value;
+        protected Object new_value;
+
+        protected Change (Kind kind, String path, Object old_value, Object new_value) {
+            this.kind      = kind;
+            this.path      = path;
+            this.old_value = old_value;
+            this.new_value = new_value;
+        }
+
+        public Kind   getKind     (CallContext context) { return this.kind; }
+        public String getPath     (CallContext context) { return this.path; }
+        // null if added
+        public Object getOldValue (CallContext context) { return this.old_value; }
+        // null if removed
+        public Object getNewValue (CallContext context) { return this.new_value; }
+
+        public String toString () {
+            return this.kind + " " + this.path;
+        }
+    }
+
+    protected List<Change> changes = new ArrayList<Change>();
+
+    protected YAMLDiff () {
+    }
+
+    static public YAMLDiff compute (CallContext context, YAMLNode old_node, YAMLNode new_node) {
+        return compute(context, old_node == null ? null : old_node.getFirstNode(context), new_node == null ? null : new_node.getFirstNode(context));
+    }
+
+    /**
+       Compares two trees; a null tree counts as absent, so the whole other
+       tree is reported as added or removed.
+    */
+    static public YAMLDiff compute (CallContext context, Object old_tree, Object new_tree) {
+        YAMLDiff diff = new YAMLDiff();
+        StringBuilder path = new StringBuilder("$");
+        if (old_tree == null && new_tree != null) {
+            diff.changes.add(new Change(Kind.Added, "$", null, new_tree));
+        } else if (old_tree != null && new_tree == null) {
+            diff.changes.add(new Change(Kind.Removed, "$", old_tree, null));
+        } else if (old_tree != null) {
+            diff.compare(old_tree, new_tree, path, new IdentityHashMap<Object,Object>());
+        }
+        if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "YAML diff: '%(count)' changes", "count", diff.changes.size()); }
+        return diff;
+    }
+
+    protected void compare (Object old_node, Object new_node, StringBuilder path, IdentityHashMap<Object,Object> visited) {
+        if (old_node == new_node) { return; }
+        if (old_node instanceof Map && new_node instanceof Map) {
+            // aliases are compared once, recursive ones would not terminate
+            if (visited.put(old_node, new_node) == new_node) { return; }
+            Map<?,?> old_map = (Map<?,?>) old_node;
+            Map<?,?> new_map = (Map<?,?>) new_node;
+            int length = path.length();
+            for (Map.Entry<?,?> entry : old_map.entrySet()) {
+                Object key = entry.getKey();
+                appendKey(path, key);
+                if (new_map.containsKey(key)) {
+                    this.compare(entry.getValue(), new_map.get(key), path, visited);
+                } else {
+                    this.changes.add(new Change(Kind.Removed, path.toString(), entry.getValue(), null));
+                }
+                path.setLength(length);
+            }
+            for (Map.Entry<?,?> entry : new_map.entrySet()) {
+                if (old_map.containsKey(entry.getKey()) == false) {
+                    appendKey(path, entry.getKey());
+                    this.changes.add(new Change(Kind.Added, path.toString(), null, entry.getValue()));
+                    path.setLength(length);
+                }
+            }
+        } else if (old_node instanceof List && new_node instanceof List) {
+            if (visited.put(old_node, new_node) == new_node) { return; }
+            List<?> old_list = (List<?>) old_node;
+            List<?> new_list = (List<?>) new_node;
+            int length = path.length();
+            int old_size = old_list.size();
+            int new_size = new_list.size();
+            for (int i = 0; i < old_size || i < new_size; i++) {
+                path.append('[').append(i).append(']');
+                if (i >= new_size) {
+                    this.changes.add(new Change(Kind.Removed, path.toString(), old_list.get(i), null));
+                } else if (i >= old_size) {
+                    this.changes.add(new Change(Kind.Added, path.toString(), null, new_list.get(i)));
+                } else {
+                    this.compare(old_list.get(i), new_list.get(i), path, visited);
+                }
+                path.setLength(length);
+            }
+        } else if (old_node == null || old_node.equals(new_node) == false) {
+            this.changes.add(new Change(Kind.Changed, path.toString(), old_node, new_node));
+        }
+    }
+
+    static protected void appendKey (StringBuilder path, Object key) {
+        YAMLEventReader.appendKey(path, key == null ? "~" : key.toString());
+    }
+
+    public List<Change> getChanges (CallContext context) {
+        return this.changes;
+    }
+
+    public boolean isEmpty (CallContext context) {
+        return this.changes.isEmpty();
+    }
+
+    public String toString () {
+        return this.changes.toString();
+    }
+}
@@ -0,0 +1,249 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+   Optional LRU cache of parsed YAML files, used by
+   {@link YAMLNode#createYAMLNode(CallContext, Path)} if enabled.
+
+   An entry is valid as long as the file's size and modification time
+   are unchanged, and so are the settings it was loaded with (loader
+   profile, shared merges, constructor factory, compact trees and string
+   interning); changing any of these clears the cache. Cached trees are
+   shared between all callers and are therefore made unmodifiable,
+   unless they are compact trees, which are immutable anyway; each call
+   gets a YAMLNode of its own.
+
+   The cache is bounded by number of entries and by an estimated heap
+   size, which is the file size multiplied by a configurable factor.
+   Configuration properties, below "com.sphenon.formats.yaml.":
+   "DocumentCacheEnabled" (default false), "DocumentCacheMaxEntries"
+   (default 256), "DocumentCacheMaxBytes" (default 64 MB) and
+   "DocumentCacheHeapFactor" (default 6).
+*/
+public class YAMLDocumentCache {
+    static final public Class _class = YAMLDocumentCache.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected class Entry {
+        protected long   length;
+        protected long   last_modified;
+        protected long   estimated_bytes;
+        protected String settings;
+        protected Object tree;
+    }
+
+    static protected volatile boolean enabled;
+    static protected int    max_entries     = 256;
+    static protected long   max_bytes       = 64L * 1024L * 1024L;
+    static protected int    heap_factor     = 6;
+    static protected long   estimated_bytes;
+
+    static protected LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+    static protected AtomicLong hits      = new AtomicLong();
+    static protected AtomicLong misses    = new AtomicLong();
+    static protected AtomicLong evictions = new AtomicLong();
+
+    static { YAMLPackageInitialiser.initialise(RootContext.getRootContext()); }
+
+    static public void initialise (CallContext context) {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        configure(context,
+                  config.get(context, "DocumentCacheEnabled", false),
+                  config.get(context, "DocumentCacheMaxEntries", 256),
+                  config.get(context, "DocumentCacheMaxBytes", 64L * 1024L * 1024L),
+                  config.get(context, "DocumentCacheHeapFactor", 6));
+    }
+
+    static public synchronized void configure (CallContext context, boolean new_enabled, int new_max_entries, long new_max_bytes, int new_heap_factor) {
+        YAMLPackageInitialiser.initialise(context); // so it does not override this later
+        max_entries = new_max_entries;
+        max_bytes   = new_max_bytes;
+        heap_factor = new_heap_factor;
+        enabled     = new_enabled;
+        if (new_enabled) {
+            evict(context);
+        } else {
+            clear(context);
+        }
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML document cache configured, enabled '%(enabled)', max entries '%(entries)', max bytes '%(bytes)'", "enabled", new_enabled, "entries", new_max_entries, "bytes", new_max_bytes); }
+    }
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    static public synchronized void clear (CallContext context) {
+        entries.clear();
+        estimated_bytes = 0;
+    }
+
+    /**
+       Removes the entry of the given file, e.g. when it is known to have
+       changed although its size and modification time may not show it.
+    */
+    static public synchronized void invalidate (CallContext context, Path path) {
+        Entry entry = entries.remove(path.toAbsolutePath().toString());
+        if (entry != null) { estimated_bytes -= entry.estimated_bytes; }
+    }
+
+    /**
+       Called when load settings change, cached trees were loaded with
+       the previous ones.
+    */
+    static public void settingsChanged (CallContext context) {
+        if (enabled) { clear(context); }
+    }
+
+    static protected String getSettings (CallContext context) {
+        return YAMLParserPool.getSettings(context) + "|" + YAMLCompactTree.isEnabled() + "|" + YAMLInternTable.isEnabled();
+    }
+
+    static public long getHits      () { return hits.get(); }
+    static public long getMisses    () { return misses.get(); }
+    static public long getEvictions () { return evictions.get(); }
+
+    static public synchronized int  getSize           () { return entries.size(); }
+    static public synchronized long getEstimatedBytes () { return estimated_bytes; }
+
+    static public void traceStatistics (CallContext context) {
+        if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "YAML document cache: '%(hits)' hits, '%(misses)' misses, '%(evictions)' evictions, '%(size)' entries, ~'%(bytes)' bytes", "hits", getHits(), "misses", getMisses(), "evictions", getEvictions(), "size", getSize(), "bytes", getEstimatedBytes()); }
+    }
+
+    static public YAMLNode getYAMLNode (CallContext context, Path path) throws InvalidYAML {
+        String key           = path.toAbsolutePath().toString();
+        String settings      = getSettings(context);
+        long   length        = -1;
+        long   last_modified = -1;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            length        = attributes.size();
+            last_modified = attributes.lastModifiedTime().toMillis();
+        } catch (IOException ioe) {
+            // not cacheable, loadYAML reports the problem
+        }
+
+        synchronized (YAMLDocumentCache.class) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.length == length && entry.last_modified == last_modified && entry.settings.equals(settings)) {
+                hits.incrementAndGet();
+                if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML document cache hit '%(file)'", "file", key); }
+                return new YAMLNode(context, entry.tree);
+            }
+        }
+
+        misses.incrementAndGet();
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML document cache miss '%(file)'", "file", key); }
+
+        Entry entry = new Entry();
+        entry.length          = length;
+        entry.last_modified   = last_modified;
+        entry.estimated_bytes = length * heap_factor;
+        entry.settings        = settings;
+        entry.tree            = freeze(YAMLNode.loadYAML(context, path, false, null));
+
+        if (entry.estimated_bytes <= max_bytes) {
+            synchronized (YAMLDocumentCache.class) {
+                Entry previous = entries.put(key, entry);
+                if (previous != null) { estimated_bytes -= previous.estimated_bytes; }
+                estimated_bytes += entry.estimated_bytes;
+                evict(context);
+            }
+        }
+
+        return new YAMLNode(context, entry.tree);
+    }
+
+    static protected synchronized void evict (CallContext context) {
+        Iterator<Map.Entry<String,Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > max_entries || estimated_bytes > max_bytes) && iterator.hasNext()) {
+            Map.Entry<String,Entry> eldest = iterator.next();
+            iterator.remove();
+            estimated_bytes -= eldest.getValue().estimated_bytes;
+            evictions.incrementAndGet();
+            if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "YAML document cache evicted '%(file)'", "file", eldest.getKey()); }
+        }
+    }
+
+    /**
+       Makes a parsed tree unmodifiable, so it can be shared. Aliased
+       (and recursive) collections are wrapped once and stay shared.
+    */
+    static protected Object freeze (Object node) {
+        return freeze(node, new IdentityHashMap<Object,Object>());
+    }
+
+    @SuppressWarnings("unchecked")
+    static protected Object freeze (Object node, IdentityHashMap<Object,Object> frozen) {
+        if ((node instanceof Map || node instanceof List || node instanceof Set) == false || YAMLCompactTree.isCompact(node)) {
+            return node;
+        }
+        Object result = frozen.get(node);
+        if (result != null) { return result; }
+        if (node instanceof YAMLMergeOverlay) {
+            // read only already, its parts are frozen in place
+            YAMLMergeOverlay overlay = (YAMLMergeOverlay) node;
+            frozen.put(node, node);
+            overlay.leading = (Map<?,?>) freeze(overlay.leading, frozen);
+            overlay.own     = (Map<?,?>) freeze(overlay.own, frozen);
+            for (int b = 0; b < overlay.bases.length; b++) { overlay.bases[b] = (Map<?,?>) freeze(overlay.bases[b], frozen); }
+            return node;
+        }
+        if (node instanceof Map) {
+            Map<Object,Object> map = (Map<Object,Object>) node;
+            frozen.put(node, result = Collections.unmodifiableMap(map));
+            for (Map.Entry<Object,Object> entry : map.entrySet()) {
+                entry.setValue(freeze(entry.getValue(), frozen));
+            }
+        } else if (node instanceof List) {
+            List<Object> list = (List<Object>) node;
+            frozen.put(node, result = Collections.unmodifiableList(list));
+            for (ListIterator<Object> iterator = list.listIterator(); iterator.hasNext(); ) {
+                iterator.set(freeze(iterator.next(), frozen));
+            }
+        } else {
+            Set<Object> set = (Set<Object>) node;
+            frozen.put(node, result = Collections.unmodifiableSet(set));
+            // elements are replaced by their frozen views, so the set is refilled
+            Object[] elements = set.toArray();
+            set.clear();
+            for (Object element : elements) {
+                set.add(freeze(element, frozen));
+            }
+        }
+        return result;
+    }
+}
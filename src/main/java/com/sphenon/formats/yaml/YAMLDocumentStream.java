@@ -0,0 +1,149 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.many.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.*;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import java.util.*;
+import java.io.*;
+
+/**
+   Single pass iteration over the documents of a "---" separated
+   multi document YAML stream.
+
+   Each document is parsed only when the iterator advances to it, and
+   no reference to it is kept afterwards, so memory usage depends on the
+   largest document, not on the stream size. The stream is closed when
+   the last document has been read, when parsing fails, or when
+   {@link #close} is called. Each stream uses a parser of its own, not a
+   pooled one, so an abandoned stream does not hold a pooled parser.
+
+   Parse errors surface as {@link ExceptionEnvironmentFailure} from
+   {@link Iterator#hasNext} or {@link Iterator#next}, with the
+   {@link InvalidYAML} as cause.
+*/
+public class YAMLDocumentStream implements GenericIterable<YAMLNode>, Closeable {
+    static final public Class _class = YAMLDocumentStream.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    protected CallContext      context;
+    protected InputStream      input_stream;
+    protected Yaml             yaml;
+    protected Iterator<Object> documents;
+    protected Iterator<YAMLNode> iterator;
+    protected int              index;
+    protected long             document_start;
+
+    public YAMLDocumentStream (CallContext context, InputStream input_stream) {
+        this.context      = context;
+        this.input_stream = input_stream;
+        this.yaml         = YAMLParserPool.create(context);
+        this.documents    = YAMLParserPool.loadAll(context, this.yaml, new UnicodeReader(YAMLMetrics.countBytes(YAMLMetrics.Kind.Stream, input_stream)));
+    }
+
+    public int getIndex (CallContext context) {
+        return this.index;
+    }
+
+    protected boolean hasNextDocument () {
+        if (this.documents == null) { return false; }
+        if (this.document_start == 0L) { this.document_start = YAMLMetrics.start(); }
+        boolean has_next;
+        try {
+            has_next = this.documents.hasNext();
+        } catch (Exception e) {
+            this.fail(e);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        if (has_next == false) { this.close(); }
+        return has_next;
+    }
+
+    protected YAMLNode nextDocument () {
+        if (this.hasNextDocument() == false) {
+            throw new NoSuchElementException();
+        }
+        Object document;
+        try {
+            document = this.documents.next();
+        } catch (Exception e) {
+            this.fail(e);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        this.index++;
+        if ((notification_level & Notifier.OBSESSIVE) != 0) { CustomaryContext.create(Context.create(this.context)).sendTrace(this.context, Notifier.OBSESSIVE, "Read YAML document '%(index)' from stream", "index", this.index); }
+        YAMLNode node = new YAMLNode(this.context, YAMLNode.prepareTree(this.context, document));
+        YAMLMetrics.parsed(YAMLMetrics.Kind.Stream, this.document_start, -1);
+        this.document_start = 0L;
+        return node;
+    }
+
+    protected void fail (Exception e) {
+        int failed = this.index + 1;
+        this.close();
+        InvalidYAML invalid_yaml = (e instanceof YAMLLimits.Violation ?
+                                      ((YAMLLimits.Violation) e).createReturnCode(this.context, "stream, document " + failed)
+                                    : InvalidYAML.createParseFailure(this.context, e, "stream, document " + failed));
+        YAMLMetrics.failed(YAMLMetrics.Kind.Stream, this.document_start, invalid_yaml);
+        this.document_start = 0L;
+        CustomaryContext.create((Context)this.context).throwEnvironmentFailure(this.context, invalid_yaml, "Cannot parse YAML document '%(index)' in stream", "index", failed);
+    }
+
+    public void close () {
+        if (this.documents == null) { return; }
+        this.documents = null;
+        this.yaml = null;
+        try {
+            this.input_stream.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)this.context).throwEnvironmentFailure(this.context, ioe, "Could not close stream after parsing");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    public java.util.Iterator<YAMLNode> getIterator (CallContext context) {
+        if (this.iterator != null) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML document stream can be iterated only once");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.iterator = new Iterator<YAMLNode>() {
+            public boolean hasNext() { return hasNextDocument(); }
+            public YAMLNode next() { return nextDocument(); }
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+        return this.iterator;
+    }
+
+    public java.lang.Iterable<YAMLNode> getIterable (CallContext context) {
+        final CallContext iterable_context = context;
+        return new Iterable<YAMLNode>() {
+            public Iterator<YAMLNode> iterator() { return getIterator(iterable_context); }
+        };
+    }
+}
@@ -0,0 +1,433 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.constructor.BaseConstructor;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.util.*;
+import java.io.*;
+
+/**
+   Pull style access to the parse events of a YAML stream, without
+   building the document tree.
+
+   Each {@link #next} advances to the next event; the reader keeps track
+   of the position of the current event in the document, available as
+   path like <code>$.models[3].name</code> (keys which are not simple
+   identifiers are written as <code>['key']</code>). Memory usage depends
+   on the nesting depth only.
+
+   Positioned at the start of a node, callers may {@link #skip} it or
+   {@link #materialise} it as YAMLNode, which constructs just that
+   subtree, with the same types as a complete load would produce.
+   Aliases within a materialised subtree must refer to anchors within
+   that subtree.
+*/
+public class YAMLEventReader implements Closeable {
+    static final public Class _class = YAMLEventReader.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public enum EventType { DocumentStart, DocumentEnd, MappingStart, MappingEnd, SequenceStart, SequenceEnd, Scalar, Alias };
+
+    static protected final int NONE     = 0;
+    static protected final int PUSH     = 1;
+    static protected final int COMPLETE = 2;
+    static protected final int POP      = 3;
+
+    static protected class Frame {
+        protected boolean mapping;
+        protected boolean is_key;
+        // position within parent, key or index, -1 for root or key
+        protected String  position_key;
+        protected int     position_index;
+        protected int     index;
+        protected String  key;
+        protected boolean expecting_key;
+    }
+
+    protected CallContext     context;
+    protected Reader          reader;
+    protected Parser          parser;
+    protected Event           event;
+    protected EventType       event_type;
+    protected boolean         current_is_key;
+    protected String          current_key;
+    protected int             current_index;
+    protected int             pending;
+    protected Frame[]         stack = new Frame[16];
+    protected int             depth;
+    protected int             document_index;
+    protected boolean         finished;
+    protected Resolver        resolver;
+    protected BaseConstructor constructor;
+
+    public YAMLEventReader (CallContext context, Reader reader) {
+        this.context = context;
+        this.reader  = reader;
+        this.parser  = YAMLLimits.getCurrent(context).limit(new ParserImpl(new StreamReader(reader)));
+    }
+
+    public YAMLEventReader (CallContext context, InputStream input_stream) {
+        this(context, new UnicodeReader(input_stream));
+    }
+
+    /**
+       Advances to the next event.
+
+       @return false if the end of the stream has been reached
+    */
+    public boolean next (CallContext context) throws InvalidYAML {
+        try {
+            return this.advance();
+        } catch (RuntimeException re) {
+            throw this.createInvalidYAML(context, re);
+        }
+    }
+
+    protected boolean advance () {
+        if (this.finished) { return false; }
+        this.applyPending();
+        Event e;
+        do {
+            e = this.parser.getEvent();
+        } while (e.is(Event.ID.StreamStart));
+        if (e.is(Event.ID.StreamEnd)) {
+            this.finished   = true;
+            this.event      = null;
+            this.event_type = null;
+            return false;
+        }
+        this.event = e;
+        this.event_type = (e.is(Event.ID.DocumentStart) ? EventType.DocumentStart :
+                           e.is(Event.ID.DocumentEnd)   ? EventType.DocumentEnd   :
+                           e.is(Event.ID.MappingStart)  ? EventType.MappingStart  :
+                           e.is(Event.ID.MappingEnd)    ? EventType.MappingEnd    :
+                           e.is(Event.ID.SequenceStart) ? EventType.SequenceStart :
+                           e.is(Event.ID.SequenceEnd)   ? EventType.SequenceEnd   :
+                           e.is(Event.ID.Scalar)        ? EventType.Scalar        :
+                                                          EventType.Alias);
+        switch (this.event_type) {
+            case DocumentStart :
+                this.depth = 0;
+                this.document_index++;
+                break;
+            case DocumentEnd :
+                break;
+            case MappingEnd :
+            case SequenceEnd :
+                this.pending = POP;
+                break;
+            default :
+                this.locateNode();
+                this.pending = (this.event_type == EventType.MappingStart || this.event_type == EventType.SequenceStart ? PUSH : COMPLETE);
+                break;
+        }
+        if ((notification_level & Notifier.OBSESSIVE) != 0) { CustomaryContext.create(Context.create(this.context)).sendTrace(this.context, Notifier.OBSESSIVE, "YAML event '%(event)' at '%(path)'", "event", this.event_type, "path", this.getPath(this.context)); }
+        return true;
+    }
+
+    protected void locateNode () {
+        this.current_is_key = false;
+        this.current_key    = null;
+        this.current_index  = -1;
+        if (this.depth == 0) { return; }
+        Frame top = this.stack[this.depth - 1];
+        if (top.mapping) {
+            if (top.expecting_key) {
+                this.current_is_key = true;
+            } else {
+                this.current_key = top.key;
+            }
+        } else {
+            this.current_index = top.index;
+        }
+    }
+
+    protected void applyPending () {
+        switch (this.pending) {
+            case PUSH : {
+                if (this.depth == this.stack.length) {
+                    this.stack = Arrays.copyOf(this.stack, this.depth * 2);
+                }
+                Frame frame = this.stack[this.depth];
+                if (frame == null) { frame = this.stack[this.depth] = new Frame(); }
+                frame.mapping       = (this.event_type == EventType.MappingStart);
+                frame.is_key        = this.current_is_key;
+                frame.position_key   = this.current_key;
+                frame.position_index = this.current_index;
+                frame.index         = 0;
+                frame.key           = null;
+                frame.expecting_key = true;
+                this.depth++;
+                break;
+            }
+            case COMPLETE :
+                this.complete(this.current_is_key, this.event_type == EventType.Scalar ? ((ScalarEvent) this.event).getValue() : "*" + ((AliasEvent) this.event).getAnchor());
+                break;
+            case POP :
+                this.depth--;
+                this.complete(this.stack[this.depth].is_key, "?");
+                break;
+        }
+        this.pending = NONE;
+    }
+
+    protected void complete (boolean was_key, String key) {
+        if (this.depth == 0) { return; }
+        Frame top = this.stack[this.depth - 1];
+        if (top.mapping) {
+            if (was_key) {
+                top.key = key;
+                top.expecting_key = false;
+            } else {
+                top.expecting_key = true;
+            }
+        } else {
+            top.index++;
+        }
+    }
+
+    static protected void appendElement (StringBuilder path, String key, int index) {
+        if (key != null) {
+            appendKey(path, key);
+        } else if (index >= 0) {
+            path.append('[').append(index).append(']');
+        }
+    }
+
+    static protected void appendKey (StringBuilder path, String key) {
+        int length = key.length();
+        boolean simple = (length != 0);
+        for (int i=0; simple && i<length; i++) {
+            char c = key.charAt(i);
+            simple = (c == '_' || Character.isLetter(c) || (i != 0 && (Character.isDigit(c) || c == '-')));
+        }
+        if (simple) {
+            path.append('.').append(key);
+        } else {
+            path.append("['").append(key.replace("\\", "\\\\").replace("'", "\\'")).append("']");
+        }
+    }
+
+    public EventType getEventType (CallContext context) {
+        return this.event_type;
+    }
+
+    /**
+       @return number of mappings and sequences enclosing the current event
+    */
+    public int getDepth (CallContext context) {
+        return this.pending == POP ? this.depth - 1 : this.depth;
+    }
+
+    public int getDocumentIndex (CallContext context) {
+        return this.document_index;
+    }
+
+    /**
+       @return true if the current event is (the start of) a mapping key
+    */
+    public boolean isKey (CallContext context) {
+        return this.pending != POP ? this.current_is_key : this.stack[this.depth - 1].is_key;
+    }
+
+    /**
+       @return the key of the mapping entry whose value is the current
+               node, or null if the current node is not such a value
+    */
+    public String getKey (CallContext context) {
+        int d = (this.pending == POP ? this.depth - 1 : this.depth);
+        if (d == 0 || this.isKey(context)) { return null; }
+        Frame parent = this.stack[d - 1];
+        return parent.mapping ? parent.key : null;
+    }
+
+    public String getPath (CallContext context) {
+        if (this.event == null) { return null; }
+        StringBuilder path = new StringBuilder("$");
+        for (int d=0; d<this.depth; d++) {
+            appendElement(path, this.stack[d].position_key, this.stack[d].position_index);
+        }
+        if (this.pending == PUSH || this.pending == COMPLETE) {
+            if (this.current_is_key) {
+                if (this.event_type == EventType.Scalar) {
+                    appendKey(path, ((ScalarEvent) this.event).getValue());
+                }
+            } else {
+                appendElement(path, this.current_key, this.current_index);
+            }
+        }
+        return path.toString();
+    }
+
+    public String getScalarValue (CallContext context) {
+        return this.event_type == EventType.Scalar ? ((ScalarEvent) this.event).getValue() : null;
+    }
+
+    public String getAnchor (CallContext context) {
+        return this.event instanceof NodeEvent ? ((NodeEvent) this.event).getAnchor() : null;
+    }
+
+    public String getTag (CallContext context) {
+        return this.event instanceof ScalarEvent ? ((ScalarEvent) this.event).getTag() :
+               this.event instanceof CollectionStartEvent ? ((CollectionStartEvent) this.event).getTag() : null;
+    }
+
+    public int getLine (CallContext context) {
+        return this.event == null ? -1 : this.event.getStartMark().getLine() + 1;
+    }
+
+    public int getColumn (CallContext context) {
+        return this.event == null ? -1 : this.event.getStartMark().getColumn() + 1;
+    }
+
+    protected boolean isNodeStart () {
+        return this.pending == PUSH || this.pending == COMPLETE;
+    }
+
+    protected void checkNodeStart (CallContext context, String operation) {
+        if (this.isNodeStart() == false) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot %(operation) YAML event '%(event)', reader is not positioned at the start of a node", "operation", operation, "event", this.event_type);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    /**
+       Skips the node starting at the current event; afterwards the
+       reader is positioned at its last event.
+    */
+    public void skip (CallContext context) throws InvalidYAML {
+        this.checkNodeStart(context, "skip");
+        if (this.pending == COMPLETE) { return; }
+        try {
+            int open = 1;
+            while (open != 0 && this.advance()) {
+                if (this.pending == PUSH) { open++; }
+                if (this.pending == POP)  { open--; }
+            }
+        } catch (RuntimeException re) {
+            throw this.createInvalidYAML(context, re);
+        }
+    }
+
+    /**
+       Constructs the node starting at the current event; afterwards the
+       reader is positioned at its last event.
+    */
+    public YAMLNode materialise (CallContext context) throws InvalidYAML {
+        this.checkNodeStart(context, "materialise");
+        if (this.resolver == null) {
+            this.resolver    = YAMLParserPool.createResolver(context);
+            this.constructor = YAMLParserPool.createConstructor(context);
+        }
+        try {
+            this.constructor.setComposer(new Composer(new SubtreeParser(), this.resolver));
+            return new YAMLNode(context, YAMLNode.prepareTree(context, this.constructor.getSingleData(Object.class)));
+        } catch (RuntimeException re) {
+            throw this.createInvalidYAML(context, re);
+        }
+    }
+
+    /**
+       Presents the subtree starting at the current event as a complete
+       single document stream, pulling events from the reader on demand.
+    */
+    protected class SubtreeParser implements Parser {
+        protected int   state;
+        protected int   open;
+        protected Event peeked;
+        protected Mark  mark = YAMLEventReader.this.event.getStartMark();
+
+        public boolean checkEvent(Event.ID choice) {
+            Event e = this.peekEvent();
+            return e != null && e.is(choice);
+        }
+
+        public Event peekEvent() {
+            if (this.peeked == null) { this.peeked = this.produce(); }
+            return this.peeked;
+        }
+
+        public Event getEvent() {
+            Event e = this.peekEvent();
+            this.peeked = null;
+            return e;
+        }
+
+        protected Event produce() {
+            YAMLEventReader reader = YAMLEventReader.this;
+            switch (this.state) {
+                case 0 :
+                    this.state = 1;
+                    return new StreamStartEvent(this.mark, this.mark);
+                case 1 :
+                    this.state = 2;
+                    return new DocumentStartEvent(this.mark, this.mark, false, null, Collections.<String,String>emptyMap());
+                case 2 :
+                    this.state = 3;
+                    this.open = (reader.pending == PUSH ? 1 : 0);
+                    return reader.event;
+                case 3 :
+                    if (this.open != 0) {
+                        reader.advance();
+                        if (reader.pending == PUSH) { this.open++; }
+                        if (reader.pending == POP)  { this.open--; }
+                        return reader.event;
+                    }
+                    this.state = 4;
+                    return new DocumentEndEvent(this.mark, this.mark, false);
+                default :
+                    return new StreamEndEvent(this.mark, this.mark);
+            }
+        }
+    }
+
+    protected InvalidYAML createInvalidYAML (CallContext context, RuntimeException re) {
+        String source = "event stream, document " + this.document_index + ", path " + this.getPath(context);
+        if (re instanceof YAMLLimits.Violation) {
+            return ((YAMLLimits.Violation) re).createReturnCode(context, source);
+        }
+        return InvalidYAML.createParseFailure(context, re, source);
+    }
+
+    public void close () {
+        try {
+            this.reader.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)this.context).throwEnvironmentFailure(this.context, ioe, "Could not close reader after parsing");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+   Executors for background parsing.
+
+   Configuration properties, below "com.sphenon.formats.yaml.":
+   "ParseExecutor", "ForkJoin" (default) or "VirtualThreads", and
+   "ParseParallelism", the fork join parallelism, by default the number
+   of available processors. Virtual threads are used only on runtimes
+   which provide them, otherwise the fork join pool is used instead.
+
+   Asynchronous parsing, which mostly waits for input, runs on virtual
+   threads where available, otherwise on a shared pool of daemon threads.
+   Parsers on virtual threads are pooled as described in
+   {@link YAMLParserPool}.
+*/
+public class YAMLExecutors {
+    static final public Class _class = YAMLExecutors.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected ForkJoinPool    fork_join_pool;
+    static protected ExecutorService virtual_thread_executor;
+    static protected boolean         virtual_threads_checked;
+    static protected ExecutorService          async_executor;
+    static protected ScheduledExecutorService timer;
+
+    /**
+       The pool for CPU bound parse work, created on first use and shared
+       for the lifetime of the VM.
+    */
+    static public synchronized ForkJoinPool getForkJoinPool (CallContext context) {
+        if (fork_join_pool == null) {
+            Configuration config = YAMLPackageInitialiser.getConfiguration();
+            int parallelism = config.get(context, "ParseParallelism", Runtime.getRuntime().availableProcessors());
+            if (parallelism < 1) {
+                CustomaryContext.create((Context)context).throwConfigurationError(context, "YAML parse parallelism must be at least 1, got '%(parallelism)'", "parallelism", parallelism);
+                throw (ExceptionConfigurationError) null; // compiler insists
+            }
+            fork_join_pool = new ForkJoinPool(parallelism);
+            if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML parse fork join pool created, parallelism '%(parallelism)'", "parallelism", parallelism); }
+        }
+        return fork_join_pool;
+    }
+
+    /**
+       A shared executor starting one virtual thread per task, or null if
+       the runtime does not support virtual threads.
+    */
+    static public synchronized ExecutorService getVirtualThreadExecutor (CallContext context) {
+        if (virtual_threads_checked == false) {
+            virtual_threads_checked = true;
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtual_thread_executor = (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                // runtime before virtual threads
+                if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Virtual threads not available, YAML parsing falls back to fork join pool"); }
+            }
+        }
+        return virtual_thread_executor;
+    }
+
+    /**
+       The configured default executor for parse work.
+    */
+    static public ExecutorService getDefaultExecutor (CallContext context) {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        String name = config.get(context, "ParseExecutor", "ForkJoin");
+        if (name.equals("VirtualThreads")) {
+            ExecutorService executor = getVirtualThreadExecutor(context);
+            if (executor != null) { return executor; }
+        } else if (name.equals("ForkJoin") == false) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid YAML parse executor '%(executor)', expected 'ForkJoin' or 'VirtualThreads'", "executor", name);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+        return getForkJoinPool(context);
+    }
+
+    /**
+       The default executor for asynchronous parsing, see class comment.
+    */
+    static public synchronized ExecutorService getAsyncExecutor (CallContext context) {
+        if (async_executor == null) {
+            async_executor = getVirtualThreadExecutor(context);
+            if (async_executor == null) {
+                async_executor = Executors.newCachedThreadPool(new DaemonThreadFactory("yaml-async-"));
+            }
+        }
+        return async_executor;
+    }
+
+    /**
+       A single daemon thread for timeouts of asynchronous parsing.
+    */
+    static public synchronized ScheduledExecutorService getTimer (CallContext context) {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor new_timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("yaml-timeout-"));
+            new_timer.setRemoveOnCancelPolicy(true);
+            timer = new_timer;
+        }
+        return timer;
+    }
+
+    static protected class DaemonThreadFactory implements ThreadFactory {
+        protected String prefix;
+        protected int    count;
+
+        protected DaemonThreadFactory (String prefix) {
+            this.prefix = prefix;
+        }
+
+        public synchronized Thread newThread (Runnable runnable) {
+            Thread thread = new Thread(runnable, this.prefix + (++this.count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+   Watches YAML files and reports what changed in them.
+
+   Each watched file is loaded once on {@link #watch}. When the file
+   system reports a change, the file is reloaded after a quiet period
+   (configuration property "com.sphenon.formats.yaml.WatchDebounce",
+   milliseconds, default 200), so a burst of writes causes a single
+   reload, and only then listeners get the new node and its
+   {@link YAMLDiff} against the previous version. Reloads without
+   structural change are not reported; a deleted file is reported
+   with a null node and its whole tree removed. Reloads always parse
+   the file and drop it from the {@link YAMLDocumentCache}, so other
+   readers see the new content as well.
+
+   Listeners are called on the watcher's thread, which is started by the
+   first {@link #watch}, and should return quickly. Directories are
+   watched as a whole, as long as they contain a watched file, so only
+   files in the same directories as watched ones cause any work.
+*/
+public class YAMLFileWatcher implements Closeable {
+    static final public Class _class = YAMLFileWatcher.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public interface Listener {
+        public void changed(CallContext context, Path file, YAMLNode node, YAMLDiff diff);
+        public void failed(CallContext context, Path file, InvalidYAML invalid_yaml);
+    }
+
+    static protected class Watched {
+        protected Path           file;
+        protected volatile Object tree;
+        protected List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+        protected long           due;
+    }
+
+    protected CallContext           context;
+    protected WatchService          watch_service;
+    protected long                  debounce_millis;
+    protected Map<Path,Watched>     watched     = new ConcurrentHashMap<Path,Watched>();
+    protected Map<Path,WatchKey>    directories = new HashMap<Path,WatchKey>();
+    protected Thread                thread;
+    protected volatile boolean      closed;
+
+    public YAMLFileWatcher (CallContext context) {
+        this(context, YAMLPackageInitialiser.getConfiguration().get(context, "WatchDebounce", 200L));
+    }
+
+    public YAMLFileWatcher (CallContext context, long debounce_millis) {
+        this.context         = context;
+        this.debounce_millis = debounce_millis;
+        try {
+            this.watch_service = FileSystems.getDefault().newWatchService();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not create file watch service for YAML files");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    protected void startThread () {
+        this.thread = new Thread(new Runnable() {
+            public void run() { processEvents(); }
+        }, "yaml-file-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+       Starts watching the file, if not yet done, and adds the listener.
+       Returns the current content.
+    */
+    public YAMLNode watch (CallContext context, Path file, Listener listener) throws InvalidYAML {
+        Path absolute = file.toAbsolutePath().normalize();
+        YAMLNode node;
+        synchronized (this) {
+            if (this.closed) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML file watcher is closed");
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            if (this.thread == null) { this.startThread(); }
+            Watched watched = this.watched.get(absolute);
+            if (watched == null) {
+                this.registerDirectory(context, absolute.getParent());
+                watched = new Watched();
+                watched.file = absolute;
+                try {
+                    node = YAMLNode.createYAMLNode(context, absolute);
+                } catch (InvalidYAML iy) {
+                    this.releaseDirectory(absolute.getParent());
+                    throw iy;
+                }
+                watched.tree = node.getFirstNode(context);
+                this.watched.put(absolute, watched);
+            } else {
+                node = new YAMLNode(context, watched.tree);
+            }
+            watched.listeners.add(listener);
+        }
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Watching YAML file '%(file)'", "file", absolute); }
+        return node;
+    }
+
+    public synchronized void unwatch (CallContext context, Path file, Listener listener) {
+        Path absolute = file.toAbsolutePath().normalize();
+        Watched watched = this.watched.get(absolute);
+        if (watched != null) {
+            watched.listeners.remove(listener);
+            if (watched.listeners.isEmpty()) {
+                this.watched.remove(absolute);
+                this.releaseDirectory(absolute.getParent());
+            }
+        }
+    }
+
+    protected void registerDirectory (CallContext context, Path directory) {
+        if (this.directories.containsKey(directory)) { return; }
+        try {
+            this.directories.put(directory, directory.register(this.watch_service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not watch directory '%(directory)'", "directory", directory);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    /**
+       Stops watching the directory if it contains no watched file.
+    */
+    protected void releaseDirectory (Path directory) {
+        for (Path file : this.watched.keySet()) {
+            if (file.getParent().equals(directory)) { return; }
+        }
+        WatchKey key = this.directories.remove(directory);
+        if (key != null) { key.cancel(); }
+    }
+
+    protected void processEvents () {
+        while (this.closed == false) {
+            long now = System.currentTimeMillis();
+            long next_due = Long.MAX_VALUE;
+            for (Watched watched : this.watched.values()) {
+                if (watched.due != 0 && watched.due <= now) {
+                    watched.due = 0;
+                    this.reload(watched);
+                } else if (watched.due != 0 && watched.due < next_due) {
+                    next_due = watched.due;
+                }
+            }
+            WatchKey key;
+            try {
+                key = (next_due == Long.MAX_VALUE ? this.watch_service.take()
+                                                  : this.watch_service.poll(next_due - System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+            } catch (InterruptedException ie) {
+                break;
+            } catch (ClosedWatchServiceException cwse) {
+                break;
+            }
+            if (key == null) { continue; }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // events lost, check all files of this directory
+                    for (Watched watched : this.watched.values()) {
+                        if (watched.file.getParent().equals(directory)) { watched.due = System.currentTimeMillis() + this.debounce_millis; }
+                    }
+                    continue;
+                }
+                Watched watched = this.watched.get(directory.resolve((Path) event.context()));
+                if (watched != null) {
+                    watched.due = System.currentTimeMillis() + this.debounce_millis;
+                }
+            }
+            key.reset();
+        }
+    }
+
+    protected void reload (Watched watched) {
+        Context reload_context = Context.create(this.context);
+        YAMLNode node = null;
+        try {
+            // the cache validates by size and modification time only,
+            // which may miss quick successive changes
+            YAMLDocumentCache.invalidate(reload_context, watched.file);
+            if (Files.exists(watched.file)) {
+                node = new YAMLNode(reload_context, YAMLNode.loadYAML(reload_context, watched.file, false, null));
+            }
+        } catch (InvalidYAML iy) {
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(reload_context).sendTrace(reload_context, Notifier.MONITORING, "Changed YAML file '%(file)' is invalid, keeping previous version", "file", watched.file); }
+            for (Listener listener : watched.listeners) {
+                this.notify(reload_context, listener, watched, null, null, iy);
+            }
+            return;
+        } catch (RuntimeException re) {
+            // e.g. removed between check and read, the next event follows
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(reload_context).sendTrace(reload_context, Notifier.MONITORING, "Could not reload YAML file '%(file)': %(reason)", "file", watched.file, "reason", re); }
+            return;
+        }
+        Object tree = (node == null ? null : node.getFirstNode(reload_context));
+        YAMLDiff diff = YAMLDiff.compute(reload_context, watched.tree, tree);
+        watched.tree = tree;
+        if (diff.isEmpty(reload_context)) { return; }
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(reload_context).sendTrace(reload_context, Notifier.VERBOSE, "YAML file '%(file)' changed: %(changes)", "file", watched.file, "changes", diff); }
+        for (Listener listener : watched.listeners) {
+            this.notify(reload_context, listener, watched, node, diff, null);
+        }
+    }
+
+    protected void notify (CallContext context, Listener listener, Watched watched, YAMLNode node, YAMLDiff diff, InvalidYAML invalid_yaml) {
+        try {
+            if (invalid_yaml != null) {
+                listener.failed(context, watched.file, invalid_yaml);
+            } else {
+                listener.changed(context, watched.file, node, diff);
+            }
+        } catch (RuntimeException re) {
+            // one failing listener must not stop the watcher
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "YAML file listener failed for '%(file)': %(reason)", "file", watched.file, "reason", re); }
+        }
+    }
+
+    public void close () {
+        synchronized (this) {
+            if (this.closed) { return; }
+            this.closed = true;
+        }
+        try {
+            this.watch_service.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)this.context).throwEnvironmentFailure(this.context, ioe, "Could not close file watch service for YAML files");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+}
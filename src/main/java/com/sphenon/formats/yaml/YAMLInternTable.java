@@ -0,0 +1,310 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Deduplicates mapping keys and short string scalars of parsed trees.
+
+   The table consists of two fixed size arrays, for keys and for scalars,
+   indexed by hash, where a new string replaces a different one in its
+   slot. It is therefore bounded, needs no locking (a lost race only
+   costs a missed deduplication) and keeps strings which occur often;
+   keys are kept apart so unique scalars do not displace them.
+
+   Configuration properties, below "com.sphenon.formats.yaml.":
+   "InternStrings" (default false) enables interning, "InternScope"
+   selects one table per "Document" (default), per "Batch" of
+   {@link YAMLBatchLoader} (outside batches a table per document is
+   used), or a "Global" one; the table per document is reused by the
+   next document parsed in the same thread, after clearing it.
+   "InternTableSize" is the number of slots per array (default 4096,
+   rounded up to a power of two) and "InternMaxLength" the maximum
+   length of interned scalars (default 64, keys are always interned).
+
+   Savings are traced with level VERBOSE per document, MONITORING per
+   batch, and for the global table via {@link #traceStatistics}.
+*/
+public class YAMLInternTable {
+    static final public Class _class = YAMLInternTable.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public enum Scope { Document, Batch, Global };
+
+    static protected volatile boolean enabled;
+    static protected volatile Scope   scope      = Scope.Document;
+    static protected volatile int     table_size = 4096;
+    static protected volatile int     max_length = 64;
+
+    static protected volatile YAMLInternTable global_table;
+
+    static protected ThreadLocal<YAMLInternTable> batch_table    = new ThreadLocal<YAMLInternTable>();
+    static protected ThreadLocal<YAMLInternTable> document_table = new ThreadLocal<YAMLInternTable>();
+
+    static { initialise(RootContext.getInitialisationContext()); }
+
+    static public void initialise (CallContext context) {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        String scope_name = config.get(context, "InternScope", Scope.Document.name());
+        Scope  new_scope  = null;
+        try {
+            new_scope = Scope.valueOf(scope_name);
+        } catch (IllegalArgumentException iae) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, iae, "Invalid YAML intern scope '%(scope)', expected 'Document', 'Batch' or 'Global'", "scope", scope_name);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+        configure(context,
+                  config.get(context, "InternStrings", false),
+                  new_scope,
+                  config.get(context, "InternTableSize", 4096),
+                  config.get(context, "InternMaxLength", 64));
+    }
+
+    static public synchronized void configure (CallContext context, boolean new_enabled, Scope new_scope, int new_table_size, int new_max_length) {
+        if (new_table_size < 1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML intern table needs a size of at least 1, got '%(size)'", "size", new_table_size);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        table_size   = new_table_size;
+        max_length   = new_max_length;
+        scope        = new_scope;
+        global_table = null;
+        enabled      = new_enabled;
+        YAMLDocumentCache.settingsChanged(context);
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML string interning '%(enabled)', scope '%(scope)', size '%(size)'", "enabled", new_enabled, "scope", new_scope, "size", new_table_size); }
+    }
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    /**
+       The table to use for the next document in this thread, or null if
+       interning is disabled.
+    */
+    static public YAMLInternTable getTable (CallContext context) {
+        if (enabled == false) { return null; }
+        YAMLInternTable table;
+        // outside of batches, a table per document is used
+        if (scope == Scope.Batch && (table = batch_table.get()) != null) { return table; }
+        switch (scope) {
+            case Global : {
+                table = global_table;
+                if (table == null) {
+                    synchronized (YAMLInternTable.class) {
+                        if (global_table == null) { global_table = new YAMLInternTable(Scope.Global, table_size, max_length); }
+                        table = global_table;
+                    }
+                }
+                return table;
+            }
+            default : {
+                table = document_table.get();
+                if (table == null || table.key_slots.length != getSlotCount(table_size) || table.table_max_length != max_length) {
+                    document_table.set(table = new YAMLInternTable(Scope.Document, table_size, max_length));
+                } else {
+                    table.clear();
+                }
+                return table;
+            }
+        }
+    }
+
+    /**
+       A table shared by the documents of a batch, or null if interning is
+       disabled or not configured per batch.
+    */
+    static public YAMLInternTable createBatchTable (CallContext context) {
+        return (enabled && scope == Scope.Batch ? new YAMLInternTable(Scope.Batch, table_size, max_length) : null);
+    }
+
+    /**
+       Makes the batch table current in this thread and returns the one
+       it replaces, to be restored with {@link #leaveBatch}.
+    */
+    static public YAMLInternTable enterBatch (YAMLInternTable table) {
+        YAMLInternTable previous = batch_table.get();
+        batch_table.set(table);
+        return previous;
+    }
+
+    static public void leaveBatch (YAMLInternTable previous) {
+        if (previous == null) {
+            batch_table.remove();
+        } else {
+            batch_table.set(previous);
+        }
+    }
+
+    protected Scope     table_scope;
+    protected String[]  key_slots;
+    protected String[]  scalar_slots;
+    protected int       table_max_length;
+    protected LongAdder lookups     = new LongAdder();
+    protected LongAdder hits        = new LongAdder();
+    protected LongAdder saved_bytes = new LongAdder();
+
+    protected YAMLInternTable (Scope table_scope, int size, int table_max_length) {
+        this.table_scope      = table_scope;
+        int slot_count = getSlotCount(size);
+        this.key_slots        = new String[slot_count];
+        this.scalar_slots     = new String[slot_count];
+        this.table_max_length = table_max_length;
+    }
+
+    static protected int getSlotCount (int size) {
+        return (size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1);
+    }
+
+    /**
+       Empties the table for reuse, if it has been used.
+    */
+    protected void clear () {
+        if (this.lookups.sum() == 0) { return; }
+        Arrays.fill(this.key_slots, null);
+        Arrays.fill(this.scalar_slots, null);
+        this.lookups.reset();
+        this.hits.reset();
+        this.saved_bytes.reset();
+    }
+
+    public String internKey (String key) {
+        return this.intern(this.key_slots, key);
+    }
+
+    public String internString (String string) {
+        return this.intern(this.scalar_slots, string);
+    }
+
+    protected String intern (String[] s, String string) {
+        int h    = string.hashCode();
+        int slot = (h ^ (h >>> 16)) & (s.length - 1);
+        String candidate = s[slot];
+        this.lookups.increment();
+        if (candidate != null && candidate.equals(string)) {
+            if (candidate != string) {
+                this.hits.increment();
+                // String object, array header and (at least) one byte per char
+                this.saved_bytes.add(40 + string.length());
+            }
+            return candidate;
+        }
+        s[slot] = string;
+        return string;
+    }
+
+    public Object internKey (Object key) {
+        return key instanceof String ? this.internKey((String) key) : key;
+    }
+
+    public Object internScalar (Object scalar) {
+        return (scalar instanceof String && ((String) scalar).length() <= this.table_max_length) ? this.internString((String) scalar) : scalar;
+    }
+
+    /**
+       Replaces keys and short scalars of a freshly parsed, modifiable tree
+       in place. Collections of other kinds are left alone.
+    */
+    public Object intern (CallContext context, Object tree) {
+        if (tree instanceof Map || tree instanceof List || tree instanceof Set) {
+            this.internNode(tree, new IdentityHashMap<Object,Object>());
+            return tree;
+        }
+        return this.internScalar(tree);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void internNode (Object node, IdentityHashMap<Object,Object> visited) {
+        if (visited.put(node, node) != null) { return; }
+        if (node instanceof LinkedHashMap) {
+            Map<Object,Object> map = (Map<Object,Object>) node;
+            Object[] entries = new Object[2 * map.size()];
+            int i = 0;
+            for (Map.Entry<Object,Object> entry : map.entrySet()) {
+                entries[i++] = this.internKey(entry.getKey());
+                entries[i++] = this.internChild(entry.getValue(), visited);
+            }
+            // an equal key is not replaced by put, so the map is refilled
+            map.clear();
+            for (i = 0; i < entries.length; i += 2) {
+                map.put(entries[i], entries[i + 1]);
+            }
+        } else if (node instanceof YAMLMergeOverlay) {
+            YAMLMergeOverlay overlay = (YAMLMergeOverlay) node;
+            this.internChild(overlay.leading, visited);
+            this.internNode(overlay.own, visited);
+            for (Map<?,?> base : overlay.bases) { this.internChild(base, visited); }
+        } else if (node instanceof ArrayList) {
+            List<Object> list = (List<Object>) node;
+            for (ListIterator<Object> iterator = list.listIterator(); iterator.hasNext(); ) {
+                iterator.set(this.internChild(iterator.next(), visited));
+            }
+        } else if (node instanceof LinkedHashSet) {
+            Set<Object> set = (Set<Object>) node;
+            Object[] elements = set.toArray();
+            set.clear();
+            for (Object element : elements) {
+                set.add(this.internChild(element, visited));
+            }
+        }
+    }
+
+    protected Object internChild (Object child, IdentityHashMap<Object,Object> visited) {
+        if (child instanceof Map || child instanceof List || child instanceof Set) {
+            this.internNode(child, visited);
+            return child;
+        }
+        return this.internScalar(child);
+    }
+
+    public long getLookups    () { return this.lookups.sum(); }
+    public long getHits       () { return this.hits.sum(); }
+    public long getSavedBytes () { return this.saved_bytes.sum(); }
+
+    /**
+       Called after each document, traces the savings of a per document
+       table.
+    */
+    public void documentDone (CallContext context) {
+        if (this.table_scope == Scope.Document && (notification_level & Notifier.VERBOSE) != 0) { this.trace(context, Notifier.VERBOSE, "document"); }
+    }
+
+    public void batchDone (CallContext context) {
+        if ((notification_level & Notifier.MONITORING) != 0) { this.trace(context, Notifier.MONITORING, "batch"); }
+    }
+
+    static public void traceStatistics (CallContext context) {
+        YAMLInternTable table = global_table;
+        if (table != null && (notification_level & Notifier.MONITORING) != 0) { table.trace(context, Notifier.MONITORING, "global"); }
+    }
+
+    protected void trace (CallContext context, long level, String kind) {
+        CustomaryContext.create(Context.create(context)).sendTrace(context, level, "YAML interning (%(kind)): '%(lookups)' strings, '%(hits)' deduplicated, ~'%(bytes)' bytes saved", "kind", kind, "lookups", this.getLookups(), "hits", this.getHits(), "bytes", this.getSavedBytes());
+    }
+}
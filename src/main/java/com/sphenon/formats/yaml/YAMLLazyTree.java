@@ -0,0 +1,448 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.*;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+
+/**
+   Lazily loaded YAML documents: a structural pass over the text records
+   where each entry of the root mapping or sequence starts and ends, and
+   an entry's value is constructed only when it is first accessed. Values
+   spanning at least "com.sphenon.formats.yaml.LazyThreshold" characters
+   (default 16384) are in turn loaded lazily, smaller ones completely.
+
+   Mapping keys are constructed during the structural pass. Lazy
+   collections are read only; constructed values are kept. The text stays
+   in memory as long as the tree is referenced.
+
+   Documents or values which contain aliases, complex keys, merge keys
+   ("<<") or explicitly tagged collections are loaded completely, since their parts cannot be
+   constructed independently.
+
+   If "com.sphenon.formats.yaml.LazyLoading" is true (default false),
+   {@link YAMLNode#createYAMLNode(CallContext, Path)} loads lazily.
+*/
+public class YAMLLazyTree {
+    static final public Class _class = YAMLLazyTree.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected volatile boolean enabled;
+    static protected volatile int     threshold;
+
+    static {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        enabled   = config.get(RootContext.getInitialisationContext(), "LazyLoading", false);
+        threshold = config.get(RootContext.getInitialisationContext(), "LazyThreshold", 16384);
+    }
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    static public void configure (CallContext context, boolean new_enabled, int new_threshold) {
+        threshold = new_threshold;
+        enabled   = new_enabled;
+    }
+
+    /**
+       Lazy collections are read only views, tested by this interface.
+    */
+    static public interface Lazy {
+        /**
+           Number of entries whose values have been constructed so far.
+        */
+        public int getDecodedCount();
+    }
+
+    static public Object load (CallContext context, Path path) throws InvalidYAML {
+        long start = YAMLMetrics.start();
+        ByteBuffer buffer;
+        try {
+            YAMLNode.checkFileSize(context, path);
+            buffer = YAMLNode.readFile(context, path);
+        } catch (InvalidYAML iy) {
+            throw YAMLMetrics.failed(YAMLMetrics.Kind.File, start, iy);
+        }
+        int  size  = buffer.remaining();
+        char[] text = new char[size];
+        int length = 0;
+        try (ByteBufferReader reader = new ByteBufferReader(buffer)) {
+            int n;
+            while (length < size && (n = reader.read(text, length, size - length)) > 0) { length += n; }
+        } catch (IOException ioe) {
+            throw YAMLMetrics.failed(YAMLMetrics.Kind.File, start, InvalidYAML.createParseFailure(context, ioe, path.toString()));
+        }
+        return load(context, text, length, path.toString(), YAMLMetrics.Kind.File, start, size);
+    }
+
+    static public Object load (CallContext context, String yaml_string) throws InvalidYAML {
+        long start = YAMLMetrics.start();
+        char[] text = yaml_string.toCharArray();
+        return load(context, text, text.length, "string", YAMLMetrics.Kind.String, start, text.length);
+    }
+
+    static protected Object load (CallContext context, char[] text, int length, String name, YAMLMetrics.Kind kind, long start, long size) throws InvalidYAML {
+        try {
+            YAMLLimits.getCurrent(context).checkSize(size);
+        } catch (YAMLLimits.Violation violation) {
+            throw YAMLMetrics.failed(kind, start, violation.createReturnCode(context, name));
+        }
+        Source source = new Source(context, text, length, name);
+        try {
+            Object tree = source.decode(0, source.code_points, 0, true);
+            YAMLMetrics.parsed(kind, start, size);
+            return tree;
+        } catch (InvalidYAML iy) {
+            throw YAMLMetrics.failed(kind, start, iy);
+        }
+    }
+
+    /**
+       The text of a document. Positions are counted in code points, as
+       SnakeYAML's marks are, and converted to char offsets via the
+       positions of supplementary characters, if any.
+    */
+    static protected class Source {
+        protected CallContext context;
+        protected char[]      text;
+        protected int         length;
+        protected int         code_points;
+        protected String      name;
+        protected int[]       supplementary;
+
+        protected Source (CallContext context, char[] text, int length, String name) {
+            this.context = context;
+            this.text    = text;
+            this.length  = length;
+            this.name    = name;
+            int count = 0;
+            int[] positions = null;
+            for (int c = 0; c < length; c++) {
+                if (Character.isHighSurrogate(text[c]) && c + 1 < length && Character.isLowSurrogate(text[c + 1])) {
+                    if (positions == null) { positions = new int[16]; }
+                    if (count == positions.length) { positions = Arrays.copyOf(positions, count * 2); }
+                    positions[count] = c - count;
+                    count++;
+                    c++;
+                }
+            }
+            this.supplementary = (positions == null ? null : Arrays.copyOf(positions, count));
+            this.code_points   = length - count;
+        }
+
+        protected int toCharOffset (int code_point) {
+            if (this.supplementary == null) { return code_point; }
+            int i = Arrays.binarySearch(this.supplementary, code_point);
+            return code_point + (i >= 0 ? i : -i - 1);
+        }
+
+        /**
+           The span from start to end, with its first line indented to the
+           given column, so it parses as a document of its own.
+        */
+        protected java.io.Reader read (int start, int end, int column) {
+            return new SpanReader(this.text, this.toCharOffset(start), this.toCharOffset(end), column);
+        }
+
+        protected Object decode (int start, int end, int column, boolean root) throws InvalidYAML {
+            if (end - start >= threshold) {
+                Object lazy = this.index(start, end, column, root);
+                if (lazy != null) { return lazy; }
+            }
+            return this.parse(start, end, column);
+        }
+
+        protected Object parse (int start, int end, int column) throws InvalidYAML {
+            Yaml yaml = YAMLParserPool.acquire(this.context);
+            try {
+                return YAMLNode.prepareTree(this.context, YAMLParserPool.load(this.context, yaml, this.read(start, end, column)));
+            } catch (YAMLLimits.Violation violation) {
+                throw violation.createReturnCode(this.context, this.name);
+            } catch (Exception e) {
+                throw InvalidYAML.createParseFailure(this.context, e, this.name);
+            } finally {
+                YAMLParserPool.release(this.context, yaml);
+            }
+        }
+
+        protected Object decodeLazily (int start, int end, int column) {
+            try {
+                return this.decode(start, end, column, false);
+            } catch (InvalidYAML iy) {
+                CustomaryContext.create((Context)this.context).throwEnvironmentFailure(this.context, iy, "Cannot construct lazily loaded YAML value in '%(source)'", "source", this.name);
+                throw (ExceptionEnvironmentFailure) null; // compiler insists
+            }
+        }
+
+        /**
+           Structural pass over a mapping or sequence; null if the span is
+           something else or cannot be loaded lazily.
+        */
+        protected Object index (int start, int end, int column, boolean root) throws InvalidYAML {
+            // positions in the span are relative to its padded first line
+            int offset = start - column;
+            Parser parser = YAMLLimits.getCurrent(this.context).limit(new ParserImpl(new StreamReader(this.read(start, end, column))));
+            try {
+                parser.getEvent(); // stream start
+                if (parser.checkEvent(Event.ID.DocumentStart) == false) { return null; }
+                parser.getEvent();
+                Event first = parser.getEvent();
+                if ((first instanceof CollectionStartEvent) == false || ((CollectionStartEvent) first).getImplicit() == false) {
+                    return null;
+                }
+                boolean      mapping = (first instanceof MappingStartEvent);
+                ArrayList<Object> keys = (mapping ? new ArrayList<Object>() : null);
+                int[]        spans   = new int[3 * 16];
+                int          count   = 0;
+                int          depth   = 0;
+                int          value_start  = 0;
+                int          value_column = 0;
+                boolean      expect_key   = mapping;
+                Resolver        resolver = null;
+                YAMLInternTable table    = YAMLInternTable.getTable(this.context);
+                while (true) {
+                    Event event = parser.getEvent();
+                    if (event instanceof AliasEvent) { return null; }
+                    if (depth == 0) {
+                        if (event instanceof CollectionEndEvent) { break; }
+                        if (expect_key) {
+                            if ((event instanceof ScalarEvent) == false) { return null; }
+                            if (resolver == null) { resolver = YAMLParserPool.createResolver(this.context); }
+                            if (this.isMergeKey((ScalarEvent) event, resolver)) { return null; }
+                            Object key = this.constructKey((ScalarEvent) event, offset, resolver);
+                            keys.add(table == null ? key : table.internKey(key));
+                            expect_key = false;
+                            continue;
+                        }
+                        value_start  = offset + event.getStartMark().getIndex();
+                        value_column = event.getStartMark().getColumn();
+                        if (count * 3 == spans.length) { spans = Arrays.copyOf(spans, spans.length * 2); }
+                        if (event instanceof ScalarEvent) {
+                            spans[3 * count] = value_start; spans[3 * count + 1] = offset + event.getEndMark().getIndex(); spans[3 * count + 2] = value_column;
+                            count++;
+                        } else {
+                            depth = 1;
+                        }
+                        expect_key = mapping;
+                    } else if (event instanceof CollectionStartEvent) {
+                        depth++;
+                    } else if (event instanceof CollectionEndEvent && --depth == 0) {
+                        spans[3 * count] = value_start; spans[3 * count + 1] = offset + event.getEndMark().getIndex(); spans[3 * count + 2] = value_column;
+                        count++;
+                    }
+                }
+                parser.getEvent(); // document end
+                if (parser.checkEvent(Event.ID.StreamEnd) == false) {
+                    // further documents, reported by a complete load
+                    return null;
+                }
+                if (table != null && root) { table.documentDone(this.context); }
+                if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(this.context)).sendTrace(this.context, Notifier.VERBOSE, "Indexed lazy YAML %(kind) with '%(count)' entries in '%(source)'", "kind", mapping ? "mapping" : "sequence", "count", count, "source", this.name); }
+                return (mapping ? new LazyMap(this, keys, spans, count) : new LazyList(this, spans, count));
+            } catch (YAMLLimits.Violation violation) {
+                throw violation.createReturnCode(this.context, this.name);
+            } catch (InvalidYAML iy) {
+                throw iy;
+            } catch (Exception e) {
+                throw InvalidYAML.createParseFailure(this.context, e, this.name);
+            }
+        }
+
+        /**
+           Merge keys pull entries from other values into the mapping, so
+           the mapping cannot be indexed entry by entry.
+        */
+        protected boolean isMergeKey (ScalarEvent event, Resolver resolver) {
+            String tag = event.getTag();
+            if (tag != null && tag.equals(Tag.MERGE.getValue())) { return true; }
+            return (tag == null && event.getImplicit().canOmitTagInPlainScalar() && resolver.resolve(NodeId.scalar, event.getValue(), true) == Tag.MERGE);
+        }
+
+        /**
+           Plain string keys are taken as they are, anything else (numbers,
+           tagged or quoted non string keys) is constructed from its text.
+        */
+        protected Object constructKey (ScalarEvent event, int offset, Resolver resolver) throws InvalidYAML {
+            String tag = event.getTag();
+            if (tag == null || tag.equals("!")) {
+                if (event.getImplicit().canOmitTagInPlainScalar() == false || resolver.resolve(NodeId.scalar, event.getValue(), true) == Tag.STR) {
+                    return event.getValue();
+                }
+            }
+            return this.parse(offset + event.getStartMark().getIndex(), offset + event.getEndMark().getIndex(), event.getStartMark().getColumn());
+        }
+    }
+
+    static protected class SpanReader extends java.io.Reader {
+        protected char[] text;
+        protected int    position;
+        protected int    end;
+        protected int    padding;
+
+        protected SpanReader (char[] text, int start, int end, int padding) {
+            this.text     = text;
+            this.position = start;
+            this.end      = end;
+            this.padding  = padding;
+        }
+
+        public int read (char[] buffer, int offset, int length) {
+            if (length == 0) { return 0; }
+            int n = 0;
+            while (this.padding > 0 && n < length) {
+                buffer[offset + n++] = ' ';
+                this.padding--;
+            }
+            int copy = Math.min(length - n, this.end - this.position);
+            if (copy > 0) {
+                System.arraycopy(this.text, this.position, buffer, offset + n, copy);
+                this.position += copy;
+                n += copy;
+            }
+            return (n == 0 ? -1 : n);
+        }
+
+        public void close () {
+        }
+    }
+
+    static protected final Object UNDECODED = new Object();
+
+    static protected class LazyMap extends AbstractMap<Object,Object> implements Lazy {
+        protected Source                    source;
+        protected LinkedHashMap<Object,Integer> slots;
+        protected int[]                     spans;
+        protected Object[]                  values;
+        protected int                       decoded;
+
+        protected LazyMap (Source source, ArrayList<Object> keys, int[] spans, int count) {
+            this.source = source;
+            this.spans  = spans;
+            this.values = new Object[count];
+            Arrays.fill(this.values, UNDECODED);
+            this.slots  = new LinkedHashMap<Object,Integer>(count * 4 / 3 + 1);
+            for (int s = 0; s < count; s++) {
+                // duplicate keys: the last value wins, the first position stays
+                this.slots.put(keys.get(s), s);
+            }
+        }
+
+        protected synchronized Object getValue (int slot) {
+            Object value = this.values[slot];
+            if (value == UNDECODED) {
+                value = this.source.decodeLazily(this.spans[3 * slot], this.spans[3 * slot + 1], this.spans[3 * slot + 2]);
+                this.values[slot] = value;
+                this.decoded++;
+            }
+            return value;
+        }
+
+        public synchronized int getDecodedCount () {
+            return this.decoded;
+        }
+
+        public int size () {
+            return this.slots.size();
+        }
+
+        public boolean containsKey (Object key) {
+            return this.slots.containsKey(key);
+        }
+
+        public Object get (Object key) {
+            Integer slot = this.slots.get(key);
+            return (slot == null ? null : this.getValue(slot));
+        }
+
+        public Set<Object> keySet () {
+            return Collections.unmodifiableSet(this.slots.keySet());
+        }
+
+        public Set<Map.Entry<Object,Object>> entrySet () {
+            return new AbstractSet<Map.Entry<Object,Object>>() {
+                public int size () { return slots.size(); }
+                public Iterator<Map.Entry<Object,Object>> iterator () {
+                    final Iterator<Map.Entry<Object,Integer>> iterator = slots.entrySet().iterator();
+                    return new Iterator<Map.Entry<Object,Object>>() {
+                        public boolean hasNext () { return iterator.hasNext(); }
+                        public Map.Entry<Object,Object> next () {
+                            Map.Entry<Object,Integer> entry = iterator.next();
+                            return new AbstractMap.SimpleImmutableEntry<Object,Object>(entry.getKey(), getValue(entry.getValue()));
+                        }
+                        public void remove () { throw new UnsupportedOperationException(); }
+                    };
+                }
+            };
+        }
+    }
+
+    static protected class LazyList extends AbstractList<Object> implements RandomAccess, Lazy {
+        protected Source   source;
+        protected int[]    spans;
+        protected Object[] values;
+        protected int      decoded;
+
+        protected LazyList (Source source, int[] spans, int count) {
+            this.source = source;
+            this.spans  = spans;
+            this.values = new Object[count];
+            Arrays.fill(this.values, UNDECODED);
+        }
+
+        public synchronized Object get (int index) {
+            Object value = this.values[index];
+            if (value == UNDECODED) {
+                value = this.source.decodeLazily(this.spans[3 * index], this.spans[3 * index + 1], this.spans[3 * index + 2]);
+                this.values[index] = value;
+                this.decoded++;
+            }
+            return value;
+        }
+
+        public synchronized int getDecodedCount () {
+            return this.decoded;
+        }
+
+        public int size () {
+            return this.values.length;
+        }
+    }
+}
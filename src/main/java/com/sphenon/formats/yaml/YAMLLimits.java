@@ -0,0 +1,280 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.parser.Parser;
+
+import java.util.*;
+import java.io.*;
+
+/**
+   Limits enforced while parsing, so hostile or broken input is rejected
+   with {@link YAMLLimitExceeded} before it exhausts heap or CPU.
+
+   Checks are made on the parser's events, before SnakeYAML composes the
+   corresponding nodes, and on the raw input. Configuration properties,
+   below "com.sphenon.formats.yaml.", a value of 0 or less meaning
+   unlimited, which all are by default; parsing untrusted input calls
+   for e.g. a depth of 1000, 10000 aliases and an alias expansion of
+   10000000:
+
+   - "LimitMaxBytes": input size, in bytes for files and streams, in
+     characters for strings (not applied to multi document streams and
+     event readers, which are meant to be large)
+   - "LimitMaxDepth": nesting of collections
+   - "LimitMaxAliases": number of aliases per document
+   - "LimitMaxAliasExpansion": nodes reachable through aliases per
+     document, counted as if aliases were copies of their anchored nodes;
+     this is what stops "billion laughs" documents, which need only a few
+     aliases to describe billions of nodes
+   - "LimitMaxCollectionSize": entries per mapping or sequence
+   - "LimitMaxScalarLength": characters per scalar
+*/
+public class YAMLLimits {
+    static final public Class _class = YAMLLimits.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected volatile YAMLLimits current;
+
+    static { initialise(RootContext.getInitialisationContext()); }
+
+    static public void initialise (CallContext context) {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        register(context, new YAMLLimits(config.get(context, "LimitMaxBytes", 0L),
+                                         config.get(context, "LimitMaxDepth", 0),
+                                         config.get(context, "LimitMaxAliases", 0),
+                                         config.get(context, "LimitMaxAliasExpansion", 0L),
+                                         config.get(context, "LimitMaxCollectionSize", 0),
+                                         config.get(context, "LimitMaxScalarLength", 0)));
+    }
+
+    static public void register (CallContext context, YAMLLimits limits) {
+        current = limits;
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML limits: %(limits)", "limits", limits); }
+    }
+
+    static public YAMLLimits getCurrent (CallContext context) {
+        return current;
+    }
+
+    protected long max_bytes;
+    protected int  max_depth;
+    protected int  max_aliases;
+    protected long max_alias_expansion;
+    protected int  max_collection_size;
+    protected int  max_scalar_length;
+
+    public YAMLLimits (long max_bytes, int max_depth, int max_aliases, long max_alias_expansion, int max_collection_size, int max_scalar_length) {
+        this.max_bytes           = (max_bytes           <= 0 ? Long.MAX_VALUE    : max_bytes);
+        this.max_depth           = (max_depth           <= 0 ? Integer.MAX_VALUE : max_depth);
+        this.max_aliases         = (max_aliases         <= 0 ? Integer.MAX_VALUE : max_aliases);
+        this.max_alias_expansion = (max_alias_expansion <= 0 ? Long.MAX_VALUE    : max_alias_expansion);
+        this.max_collection_size = (max_collection_size <= 0 ? Integer.MAX_VALUE : max_collection_size);
+        this.max_scalar_length   = (max_scalar_length   <= 0 ? Integer.MAX_VALUE : max_scalar_length);
+    }
+
+    public long getMaxBytes          () { return this.max_bytes; }
+    public int  getMaxDepth          () { return this.max_depth; }
+    public int  getMaxAliases        () { return this.max_aliases; }
+    public long getMaxAliasExpansion () { return this.max_alias_expansion; }
+    public int  getMaxCollectionSize () { return this.max_collection_size; }
+    public int  getMaxScalarLength   () { return this.max_scalar_length; }
+
+    public String toString () {
+        return "bytes " + this.max_bytes + ", depth " + this.max_depth + ", aliases " + this.max_aliases + ", alias expansion " + this.max_alias_expansion + ", collection size " + this.max_collection_size + ", scalar length " + this.max_scalar_length;
+    }
+
+    /**
+       Thrown from within SnakeYAML's call chain, converted to
+       {@link YAMLLimitExceeded} by the caller of the parser.
+    */
+    static public class Violation extends YAMLException {
+        static final private long serialVersionUID = 1L;
+
+        protected String limit;
+        protected long   maximum;
+        protected Mark   mark;
+
+        protected Violation (String limit, long maximum, Mark mark) {
+            super("YAML limit " + limit + " of " + maximum + " exceeded" + (mark == null ? "" : mark.toString()));
+            this.limit   = limit;
+            this.maximum = maximum;
+            this.mark    = mark;
+        }
+
+        public YAMLLimitExceeded createReturnCode (CallContext context, String source) {
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "YAML limit '%(limit)' exceeded in '%(source)'", "limit", this.limit, "source", source); }
+            return YAMLLimitExceeded.createYAMLLimitExceeded(context, this, this.limit, this.maximum, source, this.mark);
+        }
+    }
+
+    public void checkSize (long size) {
+        if (size > this.max_bytes) { throw new Violation("MaxBytes", this.max_bytes, null); }
+    }
+
+    public InputStream limit (InputStream input_stream) {
+        return (this.max_bytes == Long.MAX_VALUE ? input_stream : new LimitedInputStream(input_stream));
+    }
+
+    public Parser limit (Parser parser) {
+        if (   this.max_depth == Integer.MAX_VALUE && this.max_aliases == Integer.MAX_VALUE && this.max_alias_expansion == Long.MAX_VALUE
+            && this.max_collection_size == Integer.MAX_VALUE && this.max_scalar_length == Integer.MAX_VALUE) {
+            return parser;
+        }
+        return new LimitedParser(parser);
+    }
+
+    protected class LimitedInputStream extends FilterInputStream {
+        protected long count;
+
+        protected LimitedInputStream (InputStream input_stream) {
+            super(input_stream);
+        }
+
+        public int read () throws IOException {
+            int b = super.read();
+            if (b != -1) { this.count(1); }
+            return b;
+        }
+
+        public int read (byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) { this.count(n); }
+            return n;
+        }
+
+        public long skip (long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count(skipped);
+            return skipped;
+        }
+
+        protected void count (long n) {
+            this.count += n;
+            checkSize(this.count);
+        }
+    }
+
+    /**
+       Checks events as they are consumed by the composer. Frames track,
+       per open collection, its number of children and its size with
+       aliases expanded, which is recorded for anchored collections.
+    */
+    protected class LimitedParser implements Parser {
+        protected Parser   parser;
+        protected int      depth;
+        protected int      aliases;
+        protected long     expansion;
+        protected boolean[] mappings = new boolean[16];
+        protected String[]  anchors  = new String[16];
+        protected int[]     children = new int[16];
+        protected long[]    sizes    = new long[16];
+        protected HashMap<String,Long> anchor_sizes = new HashMap<String,Long>();
+
+        protected LimitedParser (Parser parser) {
+            this.parser = parser;
+        }
+
+        public boolean checkEvent (Event.ID id) {
+            return this.parser.checkEvent(id);
+        }
+
+        public Event peekEvent () {
+            return this.parser.peekEvent();
+        }
+
+        public Event getEvent () {
+            Event event = this.parser.getEvent();
+            if (event instanceof ScalarEvent) {
+                ScalarEvent scalar = (ScalarEvent) event;
+                if (scalar.getValue().length() > max_scalar_length) { throw new Violation("MaxScalarLength", max_scalar_length, event.getStartMark()); }
+                this.addChild(event, 1, scalar.getAnchor());
+            } else if (event instanceof AliasEvent) {
+                if (++this.aliases > max_aliases) { throw new Violation("MaxAliases", max_aliases, event.getStartMark()); }
+                Long size = this.anchor_sizes.get(((AliasEvent) event).getAnchor());
+                long expanded = (size == null ? 1 : size.longValue());
+                this.expansion += expanded;
+                if (this.expansion > max_alias_expansion) { throw new Violation("MaxAliasExpansion", max_alias_expansion, event.getStartMark()); }
+                this.addChild(event, expanded, null);
+            } else if (event instanceof CollectionStartEvent) {
+                this.countChild(event);
+                if (this.depth == max_depth) { throw new Violation("MaxDepth", max_depth, event.getStartMark()); }
+                this.push(event instanceof MappingStartEvent, ((CollectionStartEvent) event).getAnchor());
+            } else if (event instanceof CollectionEndEvent) {
+                this.pop();
+            } else if (event instanceof DocumentStartEvent) {
+                this.depth = 0;
+                this.aliases = 0;
+                this.expansion = 0;
+                this.anchor_sizes.clear();
+            }
+            return event;
+        }
+
+        protected void countChild (Event event) {
+            if (this.depth == 0) { return; }
+            int d = this.depth - 1;
+            int count = ++this.children[d];
+            if ((this.mappings[d] ? (count + 1) / 2 : count) > max_collection_size) { throw new Violation("MaxCollectionSize", max_collection_size, event.getStartMark()); }
+        }
+
+        protected void addChild (Event event, long size, String anchor) {
+            this.countChild(event);
+            if (this.depth != 0) { this.sizes[this.depth - 1] += size; }
+            if (anchor != null) { this.anchor_sizes.put(anchor, size); }
+        }
+
+        protected void push (boolean mapping, String anchor) {
+            if (this.depth == this.mappings.length) {
+                int length = 2 * this.depth;
+                this.mappings = Arrays.copyOf(this.mappings, length);
+                this.anchors  = Arrays.copyOf(this.anchors, length);
+                this.children = Arrays.copyOf(this.children, length);
+                this.sizes    = Arrays.copyOf(this.sizes, length);
+            }
+            this.mappings[this.depth] = mapping;
+            this.anchors[this.depth]  = anchor;
+            this.children[this.depth] = 0;
+            this.sizes[this.depth]    = 1;
+            this.depth++;
+        }
+
+        protected void pop () {
+            this.depth--;
+            long   size   = this.sizes[this.depth];
+            String anchor = this.anchors[this.depth];
+            this.anchors[this.depth] = null;
+            if (anchor != null) { this.anchor_sizes.put(anchor, size); }
+            if (this.depth != 0) { this.sizes[this.depth - 1] += size; }
+        }
+    }
+}
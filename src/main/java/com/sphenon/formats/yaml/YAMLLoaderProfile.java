@@ -0,0 +1,64 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import org.yaml.snakeyaml.constructor.BaseConstructor;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+/**
+   Selects how parsers resolve and construct values, configured via
+   "com.sphenon.formats.yaml.LoaderProfile" or
+   {@link YAMLNode#setLoaderProfile}.
+
+   - Full: SnakeYAML's defaults, i.e. YAML 1.1 implicit types including
+     timestamps, and global tags constructing arbitrary classes; do not
+     use on untrusted input
+   - Safe: YAML 1.2 core schema (null, booleans, integers, floats), merge
+     keys, and standard collections only; besides these, only the
+     explicit tags !!timestamp, !!binary, !!omap, !!set and !!pairs are
+     constructed, other tags are rejected
+   - JSON: YAML 1.2 JSON schema, where only JSON's literals are typed,
+     all other plain scalars are strings
+
+   Safe and JSON classify plain scalars without regular expressions, see
+   {@link YAMLScalarResolver}. A registered
+   {@link YAMLParserPool.ConstructorFactory} takes precedence over the
+   profile's constructor.
+*/
+public enum YAMLLoaderProfile {
+    Full, Safe, JSON;
+
+    public BaseConstructor createConstructor (CallContext context) {
+        return this.createConstructor(context, false);
+    }
+
+    /**
+       @param share_merges whether to construct mappings with merge keys as
+                           {@link YAMLMergeOverlay}
+    */
+    public BaseConstructor createConstructor (CallContext context, boolean share_merges) {
+        return (this == Full ? new YAMLConstructor(share_merges) : new YAMLSafeConstructor(share_merges));
+    }
+
+    public Resolver createResolver (CallContext context) {
+        switch (this) {
+            case Safe : return new YAMLScalarResolver(false);
+            case JSON : return new YAMLScalarResolver(true);
+            default   : return new Resolver();
+        }
+    }
+}
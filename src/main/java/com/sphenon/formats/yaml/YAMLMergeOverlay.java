@@ -0,0 +1,227 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import org.yaml.snakeyaml.nodes.MappingNode;
+import org.yaml.snakeyaml.nodes.Node;
+import org.yaml.snakeyaml.nodes.NodeTuple;
+import org.yaml.snakeyaml.nodes.SequenceNode;
+import org.yaml.snakeyaml.nodes.Tag;
+
+import java.util.*;
+
+/**
+   Read only mapping with merge keys ("&lt;&lt;: *base"), which looks up its
+   own entries first and then those of its bases, instead of holding a
+   copy of the merged entries. Created by the constructors of all loader
+   profiles if "com.sphenon.formats.yaml.SharedMerges" is true (default
+   false) or after {@link YAMLParserPool#registerSharedMerges}; aliased
+   nodes are shared anyway, so memory stays proportional to the text.
+
+   Lookups, iteration order and equality are those of the expanded
+   mapping: own entries before the merge key, entries of the bases in
+   order of precedence, then the remaining own entries, each key at its
+   first position. Several merge keys in one mapping are treated as one
+   at the position of the first.
+*/
+public class YAMLMergeOverlay extends AbstractMap<Object,Object> {
+
+    // own entries before and after the merge key
+    protected Map<?,?>   leading;
+    protected Map<?,?>   own;
+    protected Map<?,?>[] bases;
+    protected int        size = -1;
+
+    /**
+       @param leading own entries before the merge key
+       @param own     own entries after the merge key
+       @param bases   in order of precedence, as listed in the merge key
+    */
+    public YAMLMergeOverlay (Map<?,?> leading, Map<?,?> own, Map<?,?>[] bases) {
+        this.leading = leading;
+        this.own     = own;
+        this.bases   = bases;
+    }
+
+    /**
+       The protected construction steps of the constructor using
+       {@link #construct}.
+    */
+    static public interface Constructor {
+        public Map<Object,Object> createDefaultMap (int size);
+        public void constructMapping2ndStep (MappingNode node, Map<Object,Object> mapping);
+        public Object constructObject (Node node);
+    }
+
+    /**
+       Constructs the node as overlay of its own entries and its bases,
+       or returns null if it has no bases which can be shared (see
+       {@link #getBases}), then the constructor constructs it as usual.
+    */
+    static public YAMLMergeOverlay construct (MappingNode node, Constructor constructor) {
+        MappingNode[] bases = getBases(node);
+        if (bases == null) { return null; }
+        MappingNode leading_node = getOwn(node, true);
+        MappingNode own_node     = getOwn(node, false);
+        Map<Object,Object> leading = Collections.<Object,Object>emptyMap();
+        if (leading_node.getValue().isEmpty() == false) {
+            leading = constructor.createDefaultMap(leading_node.getValue().size());
+            constructor.constructMapping2ndStep(leading_node, leading);
+        }
+        Map<Object,Object> own = constructor.createDefaultMap(own_node.getValue().size());
+        constructor.constructMapping2ndStep(own_node, own);
+        Map<?,?>[] base_maps = new Map<?,?>[bases.length];
+        for (int b = 0; b < bases.length; b++) { base_maps[b] = (Map<?,?>) constructor.constructObject(bases[b]); }
+        return new YAMLMergeOverlay(leading, own, base_maps);
+    }
+
+    /**
+       The mapping nodes merged into the node, or null if there are none
+       or they are not all plain mappings, which then are merged as usual.
+    */
+    static public MappingNode[] getBases (MappingNode node) {
+        if (node.isMerged() == false) { return null; }
+        ArrayList<MappingNode> bases = new ArrayList<MappingNode>();
+        for (NodeTuple tuple : node.getValue()) {
+            if (Tag.MERGE.equals(tuple.getKeyNode().getTag()) == false) { continue; }
+            Node value = tuple.getValueNode();
+            if (value instanceof SequenceNode) {
+                for (Node element : ((SequenceNode) value).getValue()) {
+                    if (isPlainMapping(element) == false) { return null; }
+                    bases.add((MappingNode) element);
+                }
+            } else if (isPlainMapping(value)) {
+                bases.add((MappingNode) value);
+            } else {
+                return null;
+            }
+        }
+        return (bases.isEmpty() ? null : bases.toArray(new MappingNode[bases.size()]));
+    }
+
+    static protected boolean isPlainMapping (Node node) {
+        return node instanceof MappingNode && Tag.MAP.equals(node.getTag()) && node.isTwoStepsConstruction() == false;
+    }
+
+    /**
+       The node's own entries before or after its first merge key.
+    */
+    static public MappingNode getOwn (MappingNode node, boolean leading) {
+        ArrayList<NodeTuple> tuples = new ArrayList<NodeTuple>();
+        boolean merged = false;
+        for (NodeTuple tuple : node.getValue()) {
+            if (Tag.MERGE.equals(tuple.getKeyNode().getTag())) {
+                merged = true;
+            } else if (merged != leading) {
+                tuples.add(tuple);
+            }
+        }
+        return new MappingNode(node.getTag(), true, tuples, node.getStartMark(), node.getEndMark(), node.getFlowStyle());
+    }
+
+    public Object get (Object key) {
+        Object value = this.own.get(key);
+        if (value != null || this.own.containsKey(key)) { return value; }
+        value = this.leading.get(key);
+        if (value != null || this.leading.containsKey(key)) { return value; }
+        for (Map<?,?> base : this.bases) {
+            value = base.get(key);
+            if (value != null || base.containsKey(key)) { return value; }
+        }
+        return null;
+    }
+
+    public boolean containsKey (Object key) {
+        if (this.own.containsKey(key) || this.leading.containsKey(key)) { return true; }
+        for (Map<?,?> base : this.bases) {
+            if (base.containsKey(key)) { return true; }
+        }
+        return false;
+    }
+
+    public int size () {
+        if (this.size == -1) {
+            int count = 0;
+            for (Iterator<Object> keys = this.keyIterator(); keys.hasNext(); keys.next()) { count++; }
+            this.size = count;
+        }
+        return this.size;
+    }
+
+    /**
+       Visits the leading entries, the bases and the own entries; a key is
+       skipped if an earlier of these has it, since it has been visited
+       already.
+    */
+    protected Iterator<Object> keyIterator () {
+        return new Iterator<Object>() {
+            protected int              source = -1; // leading, bases, own
+            protected Iterator<?>      keys   = leading.keySet().iterator();
+            protected Object           next;
+            protected boolean          has_next;
+
+            protected boolean seen (Object key) {
+                if (this.source == -1) { return false; }
+                if (leading.containsKey(key)) { return true; }
+                int end = (this.source < bases.length ? this.source : bases.length);
+                for (int b = 0; b < end; b++) {
+                    if (bases[b].containsKey(key)) { return true; }
+                }
+                return false;
+            }
+
+            public boolean hasNext () {
+                while (this.has_next == false) {
+                    while (this.keys.hasNext()) {
+                        Object key = this.keys.next();
+                        if (this.seen(key) == false) {
+                            this.next = key;
+                            return this.has_next = true;
+                        }
+                    }
+                    if (this.source == bases.length) { return false; }
+                    this.source++;
+                    this.keys = (this.source < bases.length ? bases[this.source] : own).keySet().iterator();
+                }
+                return true;
+            }
+
+            public Object next () {
+                if (this.hasNext() == false) { throw new NoSuchElementException(); }
+                this.has_next = false;
+                return this.next;
+            }
+
+            public void remove () { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    public Set<Map.Entry<Object,Object>> entrySet () {
+        return new AbstractSet<Map.Entry<Object,Object>>() {
+            public int size () { return YAMLMergeOverlay.this.size(); }
+            public Iterator<Map.Entry<Object,Object>> iterator () {
+                final Iterator<Object> keys = keyIterator();
+                return new Iterator<Map.Entry<Object,Object>>() {
+                    public boolean hasNext () { return keys.hasNext(); }
+                    public Map.Entry<Object,Object> next () {
+                        Object key = keys.next();
+                        return new AbstractMap.SimpleImmutableEntry<Object,Object>(key, get(key));
+                    }
+                    public void remove () { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,280 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+   Counters and latency histograms of YAML parsing, per kind of input.
+
+   Enabled via configuration property "com.sphenon.formats.yaml.MetricsEnabled"
+   (default false) or {@link #setEnabled}; when disabled, parsing only
+   checks a flag. When enabled, the figures are registered as MXBeans
+   "com.sphenon.formats.yaml:type=Parsing,kind=..." and
+   "com.sphenon.formats.yaml:type=DocumentCache", and are traced with
+   level MONITORING by {@link #traceStatistics}.
+
+   Latencies are kept in power of two buckets of microseconds, so
+   percentiles are upper bounds, exact within a factor of two. Bytes
+   are characters for strings and are not known for plain readers.
+*/
+public class YAMLMetrics {
+    static final public Class _class = YAMLMetrics.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public enum Kind { String, Stream, File, Reader };
+
+    static public interface ParsingMXBean {
+        public long   getDocuments();
+        public long   getBytes();
+        public long   getFailures();
+        public Map<String,Long> getFailuresByType();
+        public double getMeanLatencyMicros();
+        public long   getLatency50Micros();
+        public long   getLatency90Micros();
+        public long   getLatency99Micros();
+        public long   getMaxLatencyMicros();
+        public void   reset();
+    }
+
+    static public interface DocumentCacheMXBean {
+        public long   getHits();
+        public long   getMisses();
+        public long   getEvictions();
+        public double getHitRate();
+        public int    getSize();
+        public long   getEstimatedBytes();
+    }
+
+    static public class Parsing implements ParsingMXBean {
+        static final protected int BUCKETS = 40;
+
+        protected Kind            kind;
+        protected LongAdder       documents       = new LongAdder();
+        protected LongAdder       bytes           = new LongAdder();
+        protected LongAdder       failures        = new LongAdder();
+        protected LongAdder       total_nanos     = new LongAdder();
+        protected AtomicLongArray latency_buckets = new AtomicLongArray(BUCKETS);
+        protected ConcurrentHashMap<String,LongAdder> failures_by_type = new ConcurrentHashMap<String,LongAdder>();
+
+        protected Parsing (Kind kind) {
+            this.kind = kind;
+        }
+
+        protected void record (long nanos) {
+            this.total_nanos.add(nanos);
+            long micros = nanos / 1000L;
+            this.latency_buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        public long getDocuments () { return this.documents.sum(); }
+        public long getBytes     () { return this.bytes.sum(); }
+        public long getFailures  () { return this.failures.sum(); }
+
+        public Map<String,Long> getFailuresByType () {
+            Map<String,Long> result = new TreeMap<String,Long>();
+            for (Map.Entry<String,LongAdder> entry : this.failures_by_type.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+            return result;
+        }
+
+        public double getMeanLatencyMicros () {
+            long count = this.documents.sum() + this.failures.sum();
+            return (count == 0 ? 0.0 : this.total_nanos.sum() / 1000.0 / count);
+        }
+
+        public long getLatency50Micros  () { return this.getPercentile(0.50); }
+        public long getLatency90Micros  () { return this.getPercentile(0.90); }
+        public long getLatency99Micros  () { return this.getPercentile(0.99); }
+        public long getMaxLatencyMicros () { return this.getPercentile(1.00); }
+
+        /**
+           Upper bound of the bucket containing the given fraction of all
+           measurements.
+        */
+        protected long getPercentile (double fraction) {
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) { count += this.latency_buckets.get(b); }
+            if (count == 0) { return 0; }
+            long threshold = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += this.latency_buckets.get(b);
+                if (seen >= threshold) { return (b == 0 ? 0 : (1L << b) - 1); }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public void reset () {
+            this.documents.reset();
+            this.bytes.reset();
+            this.failures.reset();
+            this.total_nanos.reset();
+            this.failures_by_type.clear();
+            for (int b = 0; b < BUCKETS; b++) { this.latency_buckets.set(b, 0); }
+        }
+    }
+
+    static public class DocumentCache implements DocumentCacheMXBean {
+        public long getHits         () { return YAMLDocumentCache.getHits(); }
+        public long getMisses       () { return YAMLDocumentCache.getMisses(); }
+        public long getEvictions    () { return YAMLDocumentCache.getEvictions(); }
+        public int  getSize         () { return YAMLDocumentCache.getSize(); }
+        public long getEstimatedBytes () { return YAMLDocumentCache.getEstimatedBytes(); }
+
+        public double getHitRate () {
+            long hits  = YAMLDocumentCache.getHits();
+            long total = hits + YAMLDocumentCache.getMisses();
+            return (total == 0 ? 0.0 : (double) hits / total);
+        }
+    }
+
+    static protected volatile boolean enabled;
+    static protected boolean          registered;
+    static protected Parsing[]        parsings;
+
+    static {
+        Kind[] kinds = Kind.values();
+        parsings = new Parsing[kinds.length];
+        for (Kind kind : kinds) { parsings[kind.ordinal()] = new Parsing(kind); }
+        setEnabled(RootContext.getInitialisationContext(), YAMLPackageInitialiser.getConfiguration().get(RootContext.getInitialisationContext(), "MetricsEnabled", false));
+    }
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    static public synchronized void setEnabled (CallContext context, boolean new_enabled) {
+        if (new_enabled && registered == false) {
+            register(context);
+        }
+        enabled = new_enabled;
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML metrics enabled '%(enabled)'", "enabled", new_enabled); }
+    }
+
+    static protected void register (CallContext context) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Parsing parsing : parsings) {
+                registerMBean(server, parsing, "com.sphenon.formats.yaml:type=Parsing,kind=" + parsing.kind);
+            }
+            registerMBean(server, new DocumentCache(), "com.sphenon.formats.yaml:type=DocumentCache");
+        } catch (JMException jme) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, jme, "Could not register YAML metrics MBeans");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        registered = true;
+    }
+
+    static protected void registerMBean (MBeanServer server, Object mbean, String name) throws JMException {
+        try {
+            server.registerMBean(mbean, new ObjectName(name));
+        } catch (InstanceAlreadyExistsException iaee) {
+            // e.g. loaded by another class loader
+        }
+    }
+
+    static public Parsing getParsing (Kind kind) {
+        return parsings[kind.ordinal()];
+    }
+
+    /**
+       Start time to pass to {@link #parsed} or {@link #failed}, 0 if
+       disabled.
+    */
+    static public long start () {
+        return (enabled ? System.nanoTime() : 0L);
+    }
+
+    /**
+       @param size bytes or characters, -1 if unknown or counted by
+                   {@link #countBytes}
+    */
+    static public void parsed (Kind kind, long start, long size) {
+        if (start == 0L) { return; }
+        Parsing parsing = parsings[kind.ordinal()];
+        parsing.record(System.nanoTime() - start);
+        parsing.documents.increment();
+        if (size > 0) { parsing.bytes.add(size); }
+    }
+
+    static public <T extends InvalidYAML> T failed (Kind kind, long start, T invalid_yaml) {
+        if (start == 0L) { return invalid_yaml; }
+        Parsing parsing = parsings[kind.ordinal()];
+        parsing.record(System.nanoTime() - start);
+        parsing.failures.increment();
+        String type = invalid_yaml.getClass().getSimpleName();
+        LongAdder count = parsing.failures_by_type.get(type);
+        if (count == null) {
+            LongAdder new_count = new LongAdder();
+            count = parsing.failures_by_type.putIfAbsent(type, new_count);
+            if (count == null) { count = new_count; }
+        }
+        count.increment();
+        return invalid_yaml;
+    }
+
+    /**
+       Adds the bytes read from the stream to the kind's counter, if
+       enabled.
+    */
+    static public InputStream countBytes (Kind kind, InputStream input_stream) {
+        if (enabled == false) { return input_stream; }
+        final LongAdder bytes = parsings[kind.ordinal()].bytes;
+        return new FilterInputStream(input_stream) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) { bytes.increment(); }
+                return b;
+            }
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) { bytes.add(n); }
+                return n;
+            }
+        };
+    }
+
+    static public void traceStatistics (CallContext context) {
+        if ((notification_level & Notifier.MONITORING) != 0) {
+            for (Parsing parsing : parsings) {
+                if (parsing.getDocuments() == 0 && parsing.getFailures() == 0) { continue; }
+                CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "YAML parsing (%(kind)): '%(documents)' documents, '%(bytes)' bytes, failures %(failures), mean '%(mean)' us, p99 <= '%(p99)' us", "kind", parsing.kind, "documents", parsing.getDocuments(), "bytes", parsing.getBytes(), "failures", parsing.getFailuresByType(), "mean", (long) parsing.getMeanLatencyMicros(), "p99", parsing.getLatency99Micros());
+            }
+        }
+        YAMLDocumentCache.traceStatistics(context);
+    }
+}
@@ -15,6 +15,7 @@ package com.sphenon.formats.yaml;
 *****************************************************************************/
 
 import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
 import com.sphenon.basics.exception.*;
 import com.sphenon.basics.configuration.*;
 import com.sphenon.basics.message.*;
@@ -25,10 +26,18 @@ import com.sphenon.basics.many.*;
 import com.sphenon.formats.yaml.returncodes.*;
 
 import org.yaml.snakeyaml.*;
-import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.reader.UnicodeReader;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
 public class YAMLNode implements GenericIterable<YAMLNode> {
     static final public Class _class = YAMLNode.class;
@@ -38,38 +47,186 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     static public    long getNotificationLevel() { return notification_level; }
     static { notification_level = NotificationLocationContext.getLevel(_class); };
 
+    static protected long mapped_input_threshold;
+    static { mapped_input_threshold = YAMLPackageInitialiser.getConfiguration().get(RootContext.getInitialisationContext(), "MappedInputThreshold", 16L * 1024L * 1024L); };
+
     protected CallContext creation_context;
-    protected Vector<Object>   nodes;
     protected Object           first_node;
+    // null if there is at most one node, then first_node is the only one
+    protected Object[]         node_array;
+    protected int              node_count;
+    // compatibility view, created on demand or as passed to constructor
+    protected Vector<Object>   nodes;
     protected Vector<YAMLNode> yaml_nodes;
     protected String name;
+    // keys under which the nodes are found in their mappings, if any
+    protected Object           first_key;
+    protected Object[]         key_array;
+    // navigation caches, see get and getChildren, allocated on first use
+    protected volatile Navigation navigation;
+
+    static protected final Object NULL_KEY = new Object();
+
+    // shared result of lookups that find nothing, which are not cached
+    static protected final YAMLNode EMPTY = new YAMLNode(RootContext.getInitialisationContext());
+
+    static protected class Navigation {
+        protected final ConcurrentHashMap<Object,YAMLNode> child_cache = new ConcurrentHashMap<Object,YAMLNode>();
+        protected volatile AtomicReferenceArray<YAMLNode>  element_cache;
+        protected volatile YAMLNode                        children;
+    }
 
     static protected Object parseYAML(CallContext context, String yaml_string) throws InvalidYAML {
-        Yaml yaml = new Yaml();
-        // Yaml yaml = new Yaml(new SafeConstructor()); // SafeConstructor limits to standard java objects
+        long start = YAMLMetrics.start();
         try {
-            return yaml.load(yaml_string);
-        } catch (Exception e) {
-            InvalidYAML.createAndThrow(context, e, "Cannot parse YAML '%(yaml_string)'", "yaml_string", yaml_string);
-            throw (InvalidYAML) null; // compiler insists
+            YAMLLimits.getCurrent(context).checkSize(yaml_string.length());
+        } catch (YAMLLimits.Violation violation) {
+            throw YAMLMetrics.failed(YAMLMetrics.Kind.String, start, violation.createReturnCode(context, "string"));
         }
+        return parseYAML(context, new StringReader(yaml_string), "string", YAMLMetrics.Kind.String, start, yaml_string.length());
     }
 
     static protected Object parseYAML(CallContext context, InputStream yaml_stream) throws InvalidYAML {
-        Yaml yaml = new Yaml();
-        // Yaml yaml = new Yaml(new SafeConstructor()); // SafeConstructor limits to standard java objects
+        long start = YAMLMetrics.start();
+        return parseYAML(context, new UnicodeReader(YAMLMetrics.countBytes(YAMLMetrics.Kind.Stream, YAMLLimits.getCurrent(context).limit(yaml_stream))), "stream", YAMLMetrics.Kind.Stream, start, -1);
+    }
+
+    static protected Object parseYAML(CallContext context, Reader yaml_reader, String source) throws InvalidYAML {
+        return parseYAML(context, yaml_reader, source, YAMLMetrics.Kind.Reader, YAMLMetrics.start(), -1);
+    }
+
+    /**
+       @param start from {@link YAMLMetrics#start}
+       @param size  of the input for {@link YAMLMetrics}, -1 if unknown
+    */
+    static protected Object parseYAML(CallContext context, Reader yaml_reader, String source, YAMLMetrics.Kind kind, long start, long size) throws InvalidYAML {
+        Yaml yaml = YAMLParserPool.acquire(context);
         try {
-            return yaml.load(yaml_stream);
+            Object tree = prepareTree(context, YAMLParserPool.load(context, yaml, yaml_reader));
+            YAMLMetrics.parsed(kind, start, size);
+            return tree;
+        } catch (YAMLLimits.Violation violation) {
+            throw YAMLMetrics.failed(kind, start, violation.createReturnCode(context, source));
         } catch (Exception e) {
-            InvalidYAML.createAndThrow(context, e, "Cannot parse YAML stream");
-            throw (InvalidYAML) null; // compiler insists
+            throw YAMLMetrics.failed(kind, start, InvalidYAML.createParseFailure(context, e, source));
+        } finally {
+            YAMLParserPool.release(context, yaml);
         }
     }
 
-    static protected Vector<Object> makeVector(Object node) {
-        Vector<Object> vector = new Vector<Object>();
-        vector.add(node);
-        return vector;
+    /**
+       Selects how YAML is parsed from now on, see {@link YAMLLoaderProfile};
+       the default is taken from "com.sphenon.formats.yaml.LoaderProfile".
+    */
+    static public void setLoaderProfile(CallContext context, YAMLLoaderProfile profile) {
+        YAMLParserPool.registerLoaderProfile(context, profile);
+    }
+
+    static public YAMLLoaderProfile getLoaderProfile(CallContext context) {
+        return YAMLParserPool.getLoaderProfile(context);
+    }
+
+    /**
+       Applies the configured load modes to a freshly parsed tree.
+    */
+    static protected Object prepareTree(CallContext context, Object tree) {
+        YAMLInternTable table = YAMLInternTable.getTable(context);
+        if (YAMLCompactTree.isEnabled()) {
+            tree = YAMLCompactTree.compact(context, tree, table);
+        } else if (table != null) {
+            tree = table.intern(context, tree);
+        }
+        if (table != null) { table.documentDone(context); }
+        return tree;
+    }
+
+    static protected Object parseYAML(CallContext context, Path path) throws InvalidYAML {
+        return parseYAML(context, path, null);
+    }
+
+    /**
+       @param filter if not null, wraps the reader the file is parsed from
+    */
+    static protected Object parseYAML(CallContext context, Path path, java.util.function.UnaryOperator<Reader> filter) throws InvalidYAML {
+        long start = YAMLMetrics.start();
+        ByteBuffer buffer;
+        try {
+            checkFileSize(context, path);
+            buffer = readFile(context, path);
+        } catch (InvalidYAML iy) {
+            throw YAMLMetrics.failed(YAMLMetrics.Kind.File, start, iy);
+        }
+        Reader reader = new ByteBufferReader(buffer);
+        if (filter != null) { reader = filter.apply(reader); }
+        return parseYAML(context, reader, path.toString(), YAMLMetrics.Kind.File, start, buffer.remaining());
+    }
+
+    /**
+       Loads a file as configured, from its snapshot ({@link YAMLSnapshot}),
+       lazily ({@link YAMLLazyTree}) or by parsing it. All path based
+       loading goes through here, apart from the document cache, which is
+       consulted before.
+
+       @param lazily whether the tree may be loaded lazily; lazy trees
+                     cannot be cached
+       @param filter if not null, wraps the reader the file is parsed from
+    */
+    static protected Object loadYAML(CallContext context, Path path, boolean lazily, java.util.function.UnaryOperator<Reader> filter) throws InvalidYAML {
+        if (YAMLSnapshot.isEnabled()) {
+            return YAMLSnapshot.load(context, path, filter);
+        }
+        if (lazily && YAMLLazyTree.isEnabled()) {
+            return YAMLLazyTree.load(context, path);
+        }
+        return parseYAML(context, path, filter);
+    }
+
+    /**
+       Rejects files above the configured {@link YAMLLimits} before they
+       are read.
+    */
+    static protected void checkFileSize(CallContext context, Path path) throws InvalidYAML {
+        YAMLLimits limits = YAMLLimits.getCurrent(context);
+        if (limits.getMaxBytes() == Long.MAX_VALUE) { return; }
+        try {
+            limits.checkSize(Files.size(path));
+        } catch (YAMLLimits.Violation violation) {
+            throw violation.createReturnCode(context, path.toString());
+        } catch (IOException ioe) {
+            // reported by readFile
+        }
+    }
+
+    /**
+       Reads the file in one go into an exactly sized buffer, or maps it if
+       it is at least "com.sphenon.formats.yaml.MappedInputThreshold" bytes
+       large (default 16 MB), so it can be decoded straight from that
+       buffer. The channel is closed before returning; a mapping stays
+       valid until it is garbage collected.
+    */
+    static protected ByteBuffer readFile(CallContext context, Path path) {
+        ByteBuffer bytes = null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "File '%(file)' is too large to be read as YAML document ('%(size)' bytes)", "file", path.toString(), "size", size);
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            if (size >= mapped_input_threshold) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) { }
+                bytes.flip();
+            }
+        } catch (NoSuchFileException nsfe) {
+            CustomaryContext.create(Context.create(context)).throwPreConditionViolation(context, nsfe, "File '%(file)' does not exist (while creating YAML node)", "file", path.toString());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not read file '%(file)' (while creating YAML node)", "file", path.toString());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        return bytes;
     }
 
     public YAMLNode (CallContext context) {
@@ -77,22 +234,41 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     }
 
     public YAMLNode (CallContext context, Object node) {
-        this(context, makeVector(node), null);
+        this(context, node, null);
     }
 
     public YAMLNode (CallContext context, Object node, String name) {
-        this(context, makeVector(node), name);
+        this.creation_context = context;
+        this.first_node = node;
+        this.node_count = 1;
+        this.name = name;
     }
 
     public YAMLNode (CallContext context, Vector<Object> nodes) {
         this(context, nodes, null);
     }
 
+    /**
+       The vector is taken as snapshot, later modifications of it are not
+       reflected by this node; {@link #getYamlNodes} returns a new vector.
+    */
     public YAMLNode (CallContext context, Vector<Object> nodes, String name) {
+        this(context, nodes == null ? null : nodes.toArray(), nodes == null ? 0 : nodes.size(), name);
+        if (nodes != null && this.node_count == 0) {
+            this.nodes = new Vector<Object>();
+        }
+    }
+
+    /**
+       Takes ownership of the array, which must not be modified afterwards;
+       node sets with at most one member do not keep the array.
+    */
+    protected YAMLNode (CallContext context, Object[] node_array, int node_count, String name) {
         this.creation_context = context;
-        this.nodes = nodes;
+        this.node_count = node_count;
+        this.first_node = (node_count >= 1 ? node_array[0] : null);
+        this.node_array = (node_count > 1 ? node_array : null);
         this.name = name;
-        this.first_node = (this.nodes != null && this.nodes.size() >= 1 ? this.nodes.get(0) : null);
     }
 
     // static public YAMLNode createYAMLNode(CallContext context, TreeLeaf tree_leaf) throws InvalidYAML {
@@ -120,54 +296,361 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     }
 
     static public YAMLNode createYAMLNode(CallContext context, File file) throws InvalidYAML {
+        return createYAMLNode(context, file.toPath());
+    }
+
+    static public YAMLNode createYAMLNode(CallContext context, Path path) throws InvalidYAML {
+        if (YAMLDocumentCache.isEnabled()) {
+            return YAMLDocumentCache.getYAMLNode(context, path);
+        }
+        return new YAMLNode(context, loadYAML(context, path, true, null));
+    }
+
+    /**
+       Constructs values only when they are accessed, see
+       {@link YAMLLazyTree}; syntax errors are reported right away.
+    */
+    static public YAMLNode createYAMLNodeLazily(CallContext context, Path path) throws InvalidYAML {
+        return new YAMLNode(context, YAMLLazyTree.load(context, path));
+    }
+
+    static public YAMLNode createYAMLNodeLazily(CallContext context, String yaml_string) throws InvalidYAML {
+        return new YAMLNode(context, YAMLLazyTree.load(context, yaml_string));
+    }
+
+    /**
+       Parses the stream in the background on
+       {@link YAMLExecutors#getAsyncExecutor}; the stream is closed
+       afterwards. See {@link YAMLAsyncTask} for failures and cancellation.
+    */
+    static public CompletableFuture<YAMLNode> createYAMLNodeAsync(CallContext context, InputStream input_stream) {
+        return YAMLAsyncTask.start(context, input_stream, YAMLExecutors.getAsyncExecutor(context), 0, TimeUnit.MILLISECONDS);
+    }
+
+    static public CompletableFuture<YAMLNode> createYAMLNodeAsync(CallContext context, InputStream input_stream, Executor executor, long timeout, TimeUnit unit) {
+        return YAMLAsyncTask.start(context, input_stream, executor, timeout, unit);
+    }
+
+    static public CompletableFuture<YAMLNode> createYAMLNodeAsync(CallContext context, Path path) {
+        return YAMLAsyncTask.start(context, path, YAMLExecutors.getAsyncExecutor(context), 0, TimeUnit.MILLISECONDS);
+    }
+
+    static public CompletableFuture<YAMLNode> createYAMLNodeAsync(CallContext context, Path path, Executor executor, long timeout, TimeUnit unit) {
+        return YAMLAsyncTask.start(context, path, executor, timeout, unit);
+    }
+
+    /**
+       Lazily iterates the documents of a multi document stream, one
+       YAMLNode per document; the stream is closed when exhausted.
+    */
+    static public YAMLDocumentStream createYAMLNodes(CallContext context, InputStream input_stream) {
+        return new YAMLDocumentStream(context, input_stream);
+    }
+
+    static public YAMLDocumentStream createYAMLNodes(CallContext context, File file) {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(file);
         } catch (FileNotFoundException fnfe) {
-            CustomaryContext.create(Context.create(context)).throwPreConditionViolation(context, fnfe, "File '%(file)' does not exist (while creating YAML node)", "file", file.getPath());
+            CustomaryContext.create(Context.create(context)).throwPreConditionViolation(context, fnfe, "File '%(file)' does not exist (while creating YAML nodes)", "file", file.getPath());
             throw (ExceptionPreConditionViolation) null; // compiler insists
         }
-        YAMLNode yaml_node = createYAMLNode(context, new BufferedInputStream(fis) /* , file.getPath() */);
-        try {
-            fis.close();
-        } catch (IOException ioe) {
-            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not close stream after parsing");
-            throw (ExceptionEnvironmentFailure) null; // compiler insists
-        }
-        return yaml_node;
+        return createYAMLNodes(context, new BufferedInputStream(fis));
+    }
+
+    static public YAMLEventReader createEventReader(CallContext context, InputStream input_stream) {
+        return new YAMLEventReader(context, input_stream);
+    }
+
+    static public YAMLEventReader createEventReader(CallContext context, Path path) {
+        return new YAMLEventReader(context, new ByteBufferReader(readFile(context, path)));
     }
 
     public Vector<YAMLNode> getNodes(CallContext context) {
         if (this.yaml_nodes == null) {
-            this.yaml_nodes = new Vector<YAMLNode>();
-            for (Object node : this.nodes) {
-                this.yaml_nodes.add(new YAMLNode(context, node));
+            this.yaml_nodes = new Vector<YAMLNode>(this.node_count);
+            for (int i=0; i<this.node_count; i++) {
+                this.yaml_nodes.add(this.wrapNode(context, i));
             }
         }
         return this.yaml_nodes;
     }
 
+    /**
+       Compatibility view of the underlying nodes; prefer
+       {@link #getNodeCount} and {@link #getYamlNode}, which do not
+       allocate.
+    */
     public Vector<Object> getYamlNodes(CallContext context) {
+        if (this.nodes == null && this.node_count != 0) {
+            this.nodes = new Vector<Object>(this.node_count);
+            for (int i=0; i<this.node_count; i++) {
+                this.nodes.add(this.getNode(i));
+            }
+        }
         return this.nodes;
     }
 
+    public int getNodeCount(CallContext context) {
+        return this.node_count;
+    }
+
+    public Object getYamlNode(CallContext context, int index) {
+        if (index < 0 || index >= this.node_count) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Index '%(index)' out of range, YAML node contains '%(count)' nodes", "index", index, "count", this.node_count);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return this.getNode(index);
+    }
+
+    protected Object getNode(int index) {
+        return (index == 0 ? this.first_node : this.node_array[index]);
+    }
+
+    protected Object getNodeKey(int index) {
+        return (index == 0 ? this.first_key : this.key_array == null ? null : this.key_array[index]);
+    }
+
+    protected YAMLNode wrapNode(CallContext context, int index) {
+        YAMLNode node = new YAMLNode(context, this.getNode(index));
+        node.first_key = this.getNodeKey(index);
+        return node;
+    }
+
+    /**
+       The key under which the given node was found in its mapping by
+       {@link #get(CallContext, Object)} or {@link #getChildren}, null for
+       sequence elements and documents.
+    */
+    public Object getKey(CallContext context, int index) {
+        if (index < 0 || index >= this.node_count) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Index '%(index)' out of range, YAML node contains '%(count)' nodes", "index", index, "count", this.node_count);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return this.getNodeKey(index);
+    }
+
+    public Object getKey(CallContext context) {
+        return this.first_key;
+    }
+
     public Object getFirstNode(CallContext context) {
         return this.first_node;
     }
 
+    /**
+       The name passed on creation, otherwise the "@Name" entry of the
+       first node if that is a mapping, otherwise "".
+    */
     public String getName(CallContext context) {
         if (this.name == null) {
-            // [ToDo:YAML] !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-            // if (this.first_node.isObject()) {
-            //     this.name = this.first_node.get("@Name").asText();
-            // }
-            if (this.name == null) {
-                this.name = "";
-            }
+            Object name_node = (this.first_node instanceof Map ? ((Map<?,?>) this.first_node).get("@Name") : null);
+            this.name = (name_node == null ? "" : name_node.toString());
         }
         return this.name;
     }
 
+    /**
+       The values of the given key in all mapping nodes, as node set; if
+       there are none, the node set is empty. Results are cached, so
+       repeated lookups do not allocate; the underlying tree must not be
+       modified afterwards. Absent keys are not cached, they yield a
+       shared empty node set.
+    */
+    public YAMLNode get(CallContext context, Object key) {
+        Object cache_key = (key == null ? NULL_KEY : key);
+        ConcurrentHashMap<Object,YAMLNode> cache = this.getNavigation().child_cache;
+        YAMLNode result = cache.get(cache_key);
+        if (result == null) {
+            Object[] values = new Object[this.node_count];
+            int count = 0;
+            for (int i = 0; i < this.node_count; i++) {
+                Object node = this.getNode(i);
+                if (node instanceof Map) {
+                    Map<?,?> map = (Map<?,?>) node;
+                    Object value = map.get(key);
+                    if (value != null || map.containsKey(key)) { values[count++] = value; }
+                }
+            }
+            if (count == 0) { return EMPTY; }
+            Object[] keys = new Object[count];
+            Arrays.fill(keys, key);
+            result = createNodeSet(context, values, keys, count);
+            YAMLNode previous = cache.putIfAbsent(cache_key, result);
+            if (previous != null) { result = previous; }
+        }
+        return result;
+    }
+
+    /**
+       The element at the given index of the first node, which must be a
+       sequence; empty if the index is out of range. Results are cached
+       like those of {@link #get(CallContext, Object)}. Use
+       {@link #getYamlNode} to select a node of a node set.
+    */
+    public YAMLNode get(CallContext context, int index) {
+        if ((this.first_node instanceof List) == false) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot access element '%(index)' of YAML node, it is not a sequence", "index", index);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        List<?> list = (List<?>) this.first_node;
+        Navigation navigation = this.getNavigation();
+        AtomicReferenceArray<YAMLNode> cache = navigation.element_cache;
+        if (cache == null || cache.length() != list.size()) {
+            synchronized (navigation) {
+                if ((cache = navigation.element_cache) == null || cache.length() != list.size()) { navigation.element_cache = cache = new AtomicReferenceArray<YAMLNode>(list.size()); }
+            }
+        }
+        if (index < 0 || index >= cache.length()) {
+            return EMPTY;
+        }
+        YAMLNode result = cache.get(index);
+        if (result == null) {
+            result = new YAMLNode(context, list.get(index));
+            if (cache.compareAndSet(index, null, result) == false) { result = cache.get(index); }
+        }
+        return result;
+    }
+
+    /**
+       All values of all mapping nodes and all elements of all sequence
+       and set nodes, as one node set; {@link #getKey(CallContext, int)}
+       tells the keys of the mapping values. Cached.
+    */
+    public YAMLNode getChildren(CallContext context) {
+        Navigation navigation = this.getNavigation();
+        YAMLNode result = navigation.children;
+        if (result == null) { navigation.children = result = this.flatten(context); }
+        return result;
+    }
+
+    protected Navigation getNavigation() {
+        Navigation result = this.navigation;
+        if (result == null) {
+            synchronized (this) {
+                if ((result = this.navigation) == null) { this.navigation = result = new Navigation(); }
+            }
+        }
+        return result;
+    }
+
+    /**
+       Nodes for which the predicate holds, with their keys. This and the
+       following bulk operations process large node sets in parallel, see
+       {@link YAMLBulkOperations}.
+    */
+    public YAMLNode filter(CallContext context, java.util.function.Predicate<Object> predicate) {
+        return YAMLBulkOperations.filter(context, this, predicate);
+    }
+
+    /**
+       The function's results for all nodes, with their keys.
+    */
+    public YAMLNode map(CallContext context, java.util.function.Function<Object,Object> function) {
+        return YAMLBulkOperations.map(context, this, function);
+    }
+
+    /**
+       For each mapping node a mapping of only the given keys, as far as
+       present; other nodes are skipped.
+    */
+    public YAMLNode project(CallContext context, Object... keys) {
+        return YAMLBulkOperations.project(context, this, keys);
+    }
+
+    /**
+       Like {@link #getChildren}, but computed anew on each call.
+    */
+    public YAMLNode flatten(CallContext context) {
+        return YAMLBulkOperations.flatten(context, this);
+    }
+
+    /**
+       Takes ownership of both arrays; keys may be null.
+    */
+    static protected YAMLNode createNodeSet(CallContext context, Object[] values, Object[] keys, int count) {
+        YAMLNode result = new YAMLNode(context, values, count, null);
+        if (count > 0 && keys != null) {
+            result.first_key = keys[0];
+            if (count > 1) { result.key_array = keys; }
+        }
+        return result;
+    }
+
+    /**
+       The first node if it is a scalar, converted to a string; null if
+       there is no node or it is null.
+    */
+    public String getString(CallContext context) {
+        Object node = this.first_node;
+        if (node instanceof Map || node instanceof Collection) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML node is not a scalar");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return (node == null ? null : node.toString());
+    }
+
+    /**
+       The first node as boolean; accepts booleans and the strings "true"
+       and "false".
+    */
+    public boolean getBoolean(CallContext context) {
+        Object node = this.first_node;
+        if (node instanceof Boolean) { return (Boolean) node; }
+        if ("true".equals(node))     { return true; }
+        if ("false".equals(node))    { return false; }
+        throw this.notA(context, "boolean");
+    }
+
+    public int getInt(CallContext context) {
+        long value = this.getLong(context);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) { throw this.notA(context, "int"); }
+        return (int) value;
+    }
+
+    /**
+       The first node as long; accepts integral numbers and strings
+       containing decimal ones.
+    */
+    public long getLong(CallContext context) {
+        Object node = this.first_node;
+        if (node instanceof Integer || node instanceof Long || node instanceof Short || node instanceof Byte) {
+            return ((Number) node).longValue();
+        }
+        if (node instanceof java.math.BigInteger && ((java.math.BigInteger) node).bitLength() < 64) {
+            return ((java.math.BigInteger) node).longValue();
+        }
+        if (node instanceof String) {
+            try {
+                return Long.parseLong((String) node);
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        throw this.notA(context, "long");
+    }
+
+    /**
+       The first node as double; accepts numbers and strings containing
+       decimal ones.
+    */
+    public double getDouble(CallContext context) {
+        Object node = this.first_node;
+        if (node instanceof Number) { return ((Number) node).doubleValue(); }
+        if (node instanceof String) {
+            try {
+                return Double.parseDouble((String) node);
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        throw this.notA(context, "double");
+    }
+
+    protected ExceptionPreConditionViolation notA(CallContext context, String type) {
+        Object node = this.first_node;
+        CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML node '%(node)' (%(class)) cannot be read as %(type)", "node", node instanceof Map || node instanceof Collection ? "..." : String.valueOf(node), "class", node == null ? "null" : node.getClass().getName(), "type", type);
+        throw (ExceptionPreConditionViolation) null; // compiler insists
+    }
+
     // [ToDo:YAML] !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
     // public String getAttribute(CallContext context, String name) {
     //     return this.first_node.get(name).asText();
@@ -187,13 +670,32 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     //     return this.first_node.asText();
     // }
 
-    // public String serialise(CallContext context) {
-    //     return YAMLUtil.serialise(context, this.nodes);
-    // }
+    public String serialise(CallContext context) {
+        StringWriter writer = new StringWriter();
+        this.serialise(context, writer);
+        return writer.toString();
+    }
 
-    // public String serialise(CallContext context, Writer writer) {
-    //     return YAMLUtil.serialise(context, this.nodes, writer);
-    // }
+    /**
+       Streams the nodes to the writer, a node set with several members as
+       "---" separated documents. The writer is not flushed or closed.
+    */
+    public void serialise(CallContext context, Writer writer) {
+        if (this.node_count == 0) { return; }
+        Yaml yaml = YAMLParserPool.acquire(context);
+        try {
+            if (this.node_count == 1) {
+                yaml.dump(this.first_node, writer);
+            } else {
+                yaml.dumpAll(Arrays.asList(this.node_array).subList(0, this.node_count).iterator(), writer);
+            }
+        } catch (org.yaml.snakeyaml.error.YAMLException ye) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ye, "Could not serialise YAML node");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        } finally {
+            YAMLParserPool.release(context, yaml);
+        }
+    }
 
     // public String serialise(CallContext context, TreeLeaf tree_leaf) {
     //     return YAMLUtil.serialise(context, this.nodes, tree_leaf);
@@ -247,77 +749,6 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     //     return sb.toString();
     // }
 
-    /*
-      Baustelle...
-      haut so alles noch nicht hin; wegen field names,
-      die müßten ja auch mitgespeichert werden, also
-      parallel zu nodes array noch ein names_array
-      oder so
-     
-    public YAMLNode getChilds(CallContext context) {
-        Vector<YamlNode> result_nodes = new Vector<Node>();
-        
-        int i=0;
-        for (YamlNode node : this.nodes) {
-
-            if (node.isObject()) {
-                for (String field : node.fieldsNames()) {
-                    YamlNode child = node.get(field);
-                    result_nodes.add(result.item(n));
-                }
-            }
-            if (node.isArray()) {
-            }
-        }
-
-        return new YAMLNode(context, result_nodes);
-    }
-    */
-
-    // /**
-    //   @param filter they match attributes if name is just name; yaml:nsuri and yaml:name as names
-    //                 match the namespace uri and name
-    // */
-    // public YAMLNode getChildElementsByRegExp(CallContext context, NamedRegularExpressionFilter... filters) {
-    //     Vector<Node> result_nodes = new Vector<Node>();
-        
-    //     for (Node node : this.nodes) {
-
-    //         NodeList result = node.getChildNodes();
-
-    //         NODES: for (int n=0; n<result.getLength(); n++) {
-    //             Node child = result.item(n);
-    //             if (child.getNodeType() == Node.ELEMENT_NODE) {                    
-    //                 if (filters != null && filters.length != 0) {
-    //                     for (NamedRegularExpressionFilter nref : filters) {
-    //                         String name = nref.getName(context);
-    //                         if (nref.matches(context, 
-    //                                          name.equals("yaml:nsuri") ? child.getNamespaceURI() :
-    //                                          name.equals("yaml:name") ? child.getNodeName() :
-    //                                          ((Element)child).getAttribute(name)
-    //                                         ) == false) {
-    //                             continue NODES;
-    //                         }
-    //                     }
-    //                 }
-    //                 result_nodes.add(child);
-    //             }
-    //         }
-    //     }
-
-    //     return new YAMLNode(context, result_nodes);
-    // }
-
-    // public YAMLNode getChildElementsByFilters(CallContext context, NamedRegularExpressionFilter[]... filters) {
-    //     YAMLNode current = this;
-    //     if (filters != null) {
-    //         for (NamedRegularExpressionFilter[] filter : filters) {
-    //             current = current.getChildElementsByRegExp(context, filter);
-    //         }
-    //     }
-    //     return current;
-    // }
-
     // public boolean isText(CallContext context) {
     //     if (nodes != null && nodes.size() == 1) {
     //         short nt = nodes.get(0).getNodeType();
@@ -417,101 +848,140 @@ public class YAMLNode implements GenericIterable<YAMLNode> {
     //     return (nodes != null && nodes.size() == 1 ? nodes.get(0).getNamespaceURI() : null);
     // }
 
-    // protected class MyNamespaceContext implements javax.yaml.namespace.NamespaceContext {
-    //     protected Map<String,String> namespaces;
-    //     public MyNamespaceContext(CallContext context, Map<String,String> namespaces) {
-    //         this.namespaces = namespaces;
-    //     }
-    //     public String getNamespaceURI(String prefix) {
-    //         if (prefix == null) throw new NullPointerException("Null prefix");
-    //         else if ("pre".equals(prefix)) return "http://www.example.org/books";
-    //         else if ("yaml".equals(prefix)) return YAMLConstants.YAML_NS_URI;
-    //         String nsuri = namespaces == null ? null : namespaces.get(prefix);
-    //         if (nsuri != null) { return nsuri; }
-    //         return YAMLConstants.NULL_NS_URI;
-    //     }
+    /**
+       Evaluates a path expression on all nodes, see {@link YAMLPath} for
+       the syntax; compiled expressions are cached.
+    */
+    public YAMLNode resolvePath(CallContext context, String path) {
+        if (path == null || path.length() == 0) { return this; }
+        return YAMLPath.get(context, path).evaluate(context, this);
+    }
 
-    //     // This method isn't necessary for XPath processing.
-    //     public String getPrefix(String uri) {
-    //         throw new UnsupportedOperationException();
-    //     }
+    public YAMLNode resolvePath(CallContext context, YAMLPath path) {
+        return path.evaluate(context, this);
+    }
 
-    //     // This method isn't necessary for XPath processing either.
-    //     public Iterator getPrefixes(String uri) {
-    //         throw new UnsupportedOperationException();
-    //     }
-    // }
-    
-    // static protected XPathFactory xpath_factory;
+    /**
+       Applies the transformation to each node, see
+       {@link YAMLTransformation}; the nodes are not modified, unchanged
+       parts are shared with the result.
 
-    // public YAMLNode resolveXPath(CallContext context, String xpath) {
-    //     return resolveXPath(context, xpath, null);
-    // }
+       @param parameters name value pairs, referenced by templates
+    */
+    public YAMLNode transform(CallContext context, YAMLTransformation transformation, Object... parameters) {
+        Map<String,Object> parameter_map = YAMLTransformation.toMap(context, parameters);
+        Object[] result_nodes = new Object[this.node_count];
+        Object[] result_keys  = new Object[this.node_count];
+        for (int i = 0; i < this.node_count; i++) {
+            result_nodes[i] = transformation.apply(context, this.getNode(i), parameter_map);
+            result_keys[i]  = this.getNodeKey(i);
+        }
+        return createNodeSet(context, result_nodes, result_keys, this.node_count);
+    }
+
+    /**
+       Applies the rule set in the file, compiled and cached until it is
+       modified, see {@link YAMLTransformation#get}.
+    */
+    public YAMLNode transform(CallContext context, Path transformation_rules, Object... parameters) throws InvalidYAML {
+        return this.transform(context, YAMLTransformation.get(context, transformation_rules), parameters);
+    }
 
-    // public YAMLNode resolveXPath(CallContext context, String xpath, Map<String,String> namespaces) {
-    //     if (xpath == null || xpath.length() == 0) { return this; }
+    /**
+       Wraps the underlying nodes on demand; if {@link #getNodes} has been
+       called before, its cached wrappers are returned instead.
+    */
+    protected class NodeIterator implements java.util.Iterator<YAMLNode> {
+        protected CallContext context;
+        protected int index;
 
-    //     if (xpath_factory == null) {
-    //         xpath_factory = XPathFactory.newInstance();
-    //     }
-    //     XPath xp = xpath_factory.newXPath();
-    //     xp.setNamespaceContext(new MyNamespaceContext(context, namespaces));
-    //     XPathExpression xpe = null;
-    //     try {
-    //         xpe = xp.compile(xpath);
-    //     } catch (XPathExpressionException xpee) {
-    //         CustomaryContext.create((Context)context).throwConfigurationError(context, xpee, "Could not compile XPath '%(xpath)'", "xpath", xpath);
-    //         throw (ExceptionConfigurationError) null; // compiler insists
-    //     }
+        public NodeIterator(CallContext context) {
+            this.context = context;
+        }
 
-    //     // XPathEvaluator evaluator = new XPathEvaluatorImpl(this.getOwnerDocument(context));
-
-    //     Vector<Node> result_nodes = new Vector<Node>();
-        
-    //     for (Node node : this.nodes) {
-    //         // XPathResult result = (XPathResult) evaluator.evaluate(xpath, node, null, XPathResult.ORDERED_NODE_ITERATOR_TYPE, null);
-    //         // Node result_node;
-    //         // while ((result_node = result.iterateNext()) != null) {
-    //         //     result_nodes.add(result_node);
-    //         // }
-
-    //         NodeList result = null;
-    //         try {
-    //             result = (org.w3c.dom.NodeList) xpe.evaluate(node, XPathConstants.NODESET);
-    //         } catch (XPathExpressionException xpee) {
-    //             CustomaryContext.create((Context)context).throwConfigurationError(context, xpee, "Could not evaluate XPath '%(xpath)'", "xpath", xpath);
-    //             throw (ExceptionConfigurationError) null; // compiler insists
-    //         }
+        public boolean hasNext() {
+            return this.index < YAMLNode.this.node_count;
+        }
 
-    //         for (int n=0; n<result.getLength(); n++) {
-    //             result_nodes.add(result.item(n));
-    //         }
-    //     }
+        public YAMLNode next() {
+            if (this.hasNext() == false) { throw new NoSuchElementException(); }
+            int i = this.index++;
+            return YAMLNode.this.yaml_nodes != null ? YAMLNode.this.yaml_nodes.get(i) : this.wrap(YAMLNode.this.getNode(i), YAMLNode.this.getNodeKey(i));
+        }
 
-    //     return new YAMLNode(context, result_nodes);
-    // }
+        protected YAMLNode wrap(Object node, Object key) {
+            YAMLNode yaml_node = new YAMLNode(this.context, node);
+            yaml_node.first_key = key;
+            return yaml_node;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 
-    // public YAMLNode transform(CallContext context, SourceWithTimestamp transformer_source, Object... parameters) throws TransformationFailure {
+    /**
+       Returns one and the same YAMLNode on every step, repositioned onto
+       the current underlying node. Only valid until the next step, callers
+       must not keep references to it.
+    */
+    protected class FlyweightNodeIterator extends NodeIterator {
+        protected YAMLNode flyweight;
 
-    //     Transformer transformer = YAMLUtil.getTransformer(context, transformer_source, this.getOwnerDocument(context).getDocumentURI(), parameters);
+        public FlyweightNodeIterator(CallContext context) {
+            super(context);
+        }
 
-    //     Vector<Node> result_nodes = new Vector<Node>();
-    //     for (Node node : this.nodes) {
-    //         DOMSource source = new DOMSource(node);
-    //         DOMResult result = new DOMResult();
-    //         YAMLUtil.transform(context, transformer, source, result);
-    //         result_nodes.add(result.getNode());
-    //     }
+        public YAMLNode next() {
+            if (this.hasNext() == false) { throw new NoSuchElementException(); }
+            int i = this.index++;
+            return this.wrap(YAMLNode.this.getNode(i), YAMLNode.this.getNodeKey(i));
+        }
 
-    //     return new YAMLNode(context, result_nodes);
-    // }
+        protected YAMLNode wrap(Object node, Object key) {
+            if (this.flyweight == null) {
+                this.flyweight = new YAMLNode(this.context, node);
+            } else {
+                this.flyweight.reposition(node);
+            }
+            this.flyweight.first_key = key;
+            return this.flyweight;
+        }
+    }
+
+    protected void reposition(Object node) {
+        this.first_node = node;
+        this.nodes = null;
+        this.yaml_nodes = null;
+        this.name = null;
+        this.first_key = null;
+        this.navigation = null;
+    }
 
     public java.util.Iterator<YAMLNode> getIterator (CallContext context) {
-        return null; // this.getNodes(context).iterator();
+        return new NodeIterator(context);
     }
 
     public java.lang.Iterable<YAMLNode> getIterable (CallContext context) {
-        return null; // this.getNodes(context);
+        final CallContext iterable_context = context;
+        return new java.lang.Iterable<YAMLNode>() {
+            public java.util.Iterator<YAMLNode> iterator() { return getIterator(iterable_context); }
+        };
+    }
+
+    /**
+       Read only traversal without per element allocation, see
+       {@link FlyweightNodeIterator}.
+    */
+    public java.util.Iterator<YAMLNode> getFlyweightIterator (CallContext context) {
+        return new FlyweightNodeIterator(context);
+    }
+
+    public java.lang.Iterable<YAMLNode> getFlyweightIterable (CallContext context) {
+        final CallContext iterable_context = context;
+        return new java.lang.Iterable<YAMLNode>() {
+            public java.util.Iterator<YAMLNode> iterator() { return getFlyweightIterator(iterable_context); }
+        };
     }
 
     // protected Element getSingleElement(CallContext context) {
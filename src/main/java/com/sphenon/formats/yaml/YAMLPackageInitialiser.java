@@ -33,6 +33,17 @@ public class YAMLPackageInitialiser {
         
         if (initialised == false) {
             initialised = true;
+
+            YAMLParserPool.initialise(context);
+            YAMLDocumentCache.initialise(context);
+        }
+    }
+
+    static protected Configuration config;
+    static public Configuration getConfiguration () {
+        if (config == null) {
+            config = Configuration.create(RootContext.getInitialisationContext(), "com.sphenon.formats.yaml");
         }
+        return config;
     }
 }
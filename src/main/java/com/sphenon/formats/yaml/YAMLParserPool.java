@@ -0,0 +1,359 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import org.yaml.snakeyaml.*;
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.constructor.BaseConstructor;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.representer.Representer;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.util.Iterator;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.io.Reader;
+
+/**
+   Provides preconfigured SnakeYAML parser instances.
+
+   A {@link Yaml} instance is not thread safe, but it is reusable, and
+   setting one up (constructor, representer, resolver tables) costs more
+   than parsing a small document. Parsers are therefore kept either per
+   thread (default) or in a bounded pool of idle instances, selected via
+   configuration property "com.sphenon.formats.yaml.ParserPoolMode" with
+   values "PerThread", "Bounded" or "None", and, for bounded pools,
+   "com.sphenon.formats.yaml.ParserPoolSize". Virtual threads run a
+   single task each and would never reuse a parser of their own, so in
+   mode "PerThread" they share a separate bounded pool of that size,
+   while platform threads keep theirs.
+
+   The {@link YAMLLoaderProfile}, configuration property
+   "com.sphenon.formats.yaml.LoaderProfile", selects constructor and
+   resolver. The same instances serve for serialisation, with dumper options
+   registered via {@link #registerDumperOptions}. If
+   "com.sphenon.formats.yaml.SharedMerges" is true, mappings with merge
+   keys are constructed as {@link YAMLMergeOverlay}.
+
+   Each {@link #acquire} must be matched by a {@link #release}, typically
+   in a finally block.
+*/
+public class YAMLParserPool {
+    static final public Class _class = YAMLParserPool.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static public enum Mode { PerThread, Bounded, None };
+
+    /**
+       Creates the constructor for a new parser instance. Constructors
+       carry per document state, so each parser needs its own one.
+    */
+    static public interface ConstructorFactory {
+        public BaseConstructor create(CallContext context);
+    }
+
+    static protected class PooledYaml extends Yaml {
+        protected int     generation;
+        protected boolean in_use;
+        // the pool the parser is returned to, null if kept per thread
+        protected ArrayBlockingQueue<PooledYaml> idle;
+
+        protected PooledYaml(BaseConstructor constructor, DumperOptions dumper_options, LoaderOptions loader_options, Resolver resolver, int generation) {
+            super(constructor, new Representer(), dumper_options, loader_options, resolver);
+            this.generation = generation;
+        }
+
+        // as Yaml.load and loadAll, with the parser's events checked
+        protected Object load (Reader reader, YAMLLimits limits) {
+            this.constructor.setComposer(new Composer(limits.limit(new ParserImpl(new StreamReader(reader))), this.resolver));
+            return this.constructor.getSingleData(Object.class);
+        }
+
+        protected Iterator<Object> loadAll (Reader reader, YAMLLimits limits) {
+            this.constructor.setComposer(new Composer(limits.limit(new ParserImpl(new StreamReader(reader))), this.resolver));
+            return new Iterator<Object>() {
+                public boolean hasNext() { return constructor.checkData(); }
+                public Object next() { return constructor.getData(); }
+                public void remove() { throw new UnsupportedOperationException(); }
+            };
+        }
+    }
+
+    static protected volatile boolean            configured;
+    static protected volatile Mode               mode = Mode.PerThread;
+    static protected volatile int                generation;
+    static protected volatile LoaderOptions      loader_options;
+    static protected volatile DumperOptions      dumper_options;
+    static protected volatile ConstructorFactory constructor_factory;
+    static protected volatile YAMLLoaderProfile  loader_profile = YAMLLoaderProfile.Full;
+    static protected volatile boolean            shared_merges;
+
+    static protected ArrayBlockingQueue<PooledYaml> idle_parsers;
+    // in mode PerThread, for virtual threads
+    static protected ArrayBlockingQueue<PooledYaml> idle_virtual_parsers;
+
+    static protected Method is_virtual;
+
+    static {
+        try {
+            is_virtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException nsme) {
+            // runtime before virtual threads
+        }
+    }
+
+    static protected boolean isVirtualThread () {
+        if (is_virtual == null) { return false; }
+        try {
+            return (Boolean) is_virtual.invoke(Thread.currentThread());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    static protected ThreadLocal<PooledYaml> thread_parser = new ThreadLocal<PooledYaml>();
+
+    static public void initialise (CallContext context) {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        String mode_name = config.get(context, "ParserPoolMode", Mode.PerThread.name());
+        int    size      = config.get(context, "ParserPoolSize", 16);
+        String profile_name = config.get(context, "LoaderProfile", YAMLLoaderProfile.Full.name());
+        shared_merges = config.get(context, "SharedMerges", false);
+        try {
+            loader_profile = YAMLLoaderProfile.valueOf(profile_name);
+        } catch (IllegalArgumentException iae) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, iae, "Invalid YAML loader profile '%(profile)', expected 'Full', 'Safe' or 'JSON'", "profile", profile_name);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+        Mode   new_mode  = null;
+        try {
+            new_mode = Mode.valueOf(mode_name);
+        } catch (IllegalArgumentException iae) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, iae, "Invalid YAML parser pool mode '%(mode)', expected 'PerThread', 'Bounded' or 'None'", "mode", mode_name);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+        configure(context, new_mode, size);
+    }
+
+    static public synchronized void configure (CallContext context, Mode new_mode, int size) {
+        YAMLPackageInitialiser.initialise(context); // so it does not override this later
+        if (new_mode == Mode.Bounded && size < 1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Bounded YAML parser pool needs a size of at least 1, got '%(size)'", "size", size);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        idle_parsers         = (new_mode == Mode.Bounded   ? new ArrayBlockingQueue<PooledYaml>(size) : null);
+        idle_virtual_parsers = (new_mode == Mode.PerThread && is_virtual != null ? new ArrayBlockingQueue<PooledYaml>(Math.max(size, 1)) : null);
+        mode = new_mode;
+        generation++;
+        configured = true;
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML parser pool configured, mode '%(mode)', size '%(size)'", "mode", new_mode, "size", size); }
+    }
+
+    /**
+       Registers loader options used by all parsers created from now on.
+       Parsers created before are discarded when they are released.
+    */
+    static public synchronized void registerLoaderOptions (CallContext context, LoaderOptions new_loader_options) {
+        loader_options = new_loader_options;
+        invalidate(context);
+    }
+
+    /**
+       Registers dumper options used for serialisation by all parsers
+       created from now on; they must not be modified afterwards.
+    */
+    static public synchronized void registerDumperOptions (CallContext context, DumperOptions new_dumper_options) {
+        dumper_options = new_dumper_options;
+        invalidate(context);
+    }
+
+    /**
+       Selects the loader profile used by all parsers created from now on.
+    */
+    static public synchronized void registerLoaderProfile (CallContext context, YAMLLoaderProfile new_loader_profile) {
+        loader_profile = new_loader_profile;
+        invalidate(context);
+    }
+
+    static public YAMLLoaderProfile getLoaderProfile (CallContext context) {
+        return loader_profile;
+    }
+
+    /**
+       Selects whether parsers created from now on construct mappings with
+       merge keys as {@link YAMLMergeOverlay}.
+    */
+    static public synchronized void registerSharedMerges (CallContext context, boolean new_shared_merges) {
+        shared_merges = new_shared_merges;
+        invalidate(context);
+    }
+
+    static public boolean getSharedMerges (CallContext context) {
+        return shared_merges;
+    }
+
+    /**
+       Registers a factory for custom constructors used by all parsers
+       created from now on, null restores the default constructor.
+    */
+    static public synchronized void registerConstructorFactory (CallContext context, ConstructorFactory new_constructor_factory) {
+        constructor_factory = new_constructor_factory;
+        invalidate(context);
+    }
+
+    static public ConstructorFactory getConstructorFactory (CallContext context) {
+        return constructor_factory;
+    }
+
+    /**
+       Describes the settings which determine the trees constructed by
+       parsers created from now on, so trees loaded under other settings
+       can be told apart.
+    */
+    static public String getSettings (CallContext context) {
+        ConstructorFactory factory = constructor_factory;
+        return loader_profile.name() + "|" + shared_merges + "|" + (factory == null ? "" : factory.getClass().getName());
+    }
+
+    static protected void invalidate (CallContext context) {
+        YAMLDocumentCache.settingsChanged(context);
+        generation++;
+        ArrayBlockingQueue<PooledYaml> idle = idle_parsers;
+        if (idle != null) { idle.clear(); }
+        idle = idle_virtual_parsers;
+        if (idle != null) { idle.clear(); }
+    }
+
+    /**
+       Creates a constructor as used by pooled parsers, for callers that
+       drive composition themselves.
+    */
+    static public BaseConstructor createConstructor (CallContext context) {
+        ConstructorFactory cf = constructor_factory;
+        LoaderOptions      lo = loader_options;
+        BaseConstructor constructor = (cf == null ? loader_profile.createConstructor(context, shared_merges) : cf.create(context));
+        if (lo != null) { constructor.setAllowDuplicateKeys(lo.isAllowDuplicateKeys()); }
+        return constructor;
+    }
+
+    /**
+       Creates a resolver as used by pooled parsers, for callers that
+       drive composition themselves.
+    */
+    static public Resolver createResolver (CallContext context) {
+        return loader_profile.createResolver(context);
+    }
+
+    static protected PooledYaml createParser (CallContext context, int parser_generation) {
+        if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "Creating YAML parser instance (generation '%(generation)')", "generation", parser_generation); }
+        ConstructorFactory cf = constructor_factory;
+        DumperOptions      dd = dumper_options;
+        LoaderOptions      lo = loader_options;
+        YAMLLoaderProfile  lp = loader_profile;
+        return new PooledYaml(cf == null ? lp.createConstructor(context, shared_merges) : cf.create(context),
+                              dd == null ? new DumperOptions() : dd,
+                              lo == null ? new LoaderOptions() : lo,
+                              lp.createResolver(context),
+                              parser_generation);
+    }
+
+    static protected void ensureConfigured (CallContext context) {
+        if (configured == false) {
+            YAMLPackageInitialiser.initialise(context);
+            if (configured == false) { initialise(context); }
+        }
+    }
+
+    /**
+       Creates a parser that is not pooled, for callers that hold it for
+       an unbounded time, like {@link YAMLDocumentStream}; it need not be
+       released.
+    */
+    static public Yaml create (CallContext context) {
+        ensureConfigured(context);
+        return createParser(context, -1);
+    }
+
+    static public Yaml acquire (CallContext context) {
+        ensureConfigured(context);
+        int current = generation;
+        switch (mode) {
+            case PerThread : {
+                if (isVirtualThread()) { return acquireIdle(context, idle_virtual_parsers, current); }
+                PooledYaml yaml = thread_parser.get();
+                if (yaml == null || yaml.generation != current) {
+                    yaml = createParser(context, current);
+                    thread_parser.set(yaml);
+                } else if (yaml.in_use) {
+                    // reentrant use within the same thread
+                    return createParser(context, -1);
+                }
+                yaml.in_use = true;
+                return yaml;
+            }
+            case Bounded :
+                return acquireIdle(context, idle_parsers, current);
+            default :
+                return createParser(context, -1);
+        }
+    }
+
+    static protected PooledYaml acquireIdle (CallContext context, ArrayBlockingQueue<PooledYaml> idle, int current) {
+        if (idle == null) { return createParser(context, -1); }
+        PooledYaml yaml;
+        while ((yaml = idle.poll()) != null) {
+            if (yaml.generation == current) { return yaml; }
+        }
+        yaml = createParser(context, current);
+        yaml.idle = idle;
+        return yaml;
+    }
+
+    /**
+       Parses a single document with a parser from {@link #acquire},
+       checking the current {@link YAMLLimits}, which throw a
+       {@link YAMLLimits.Violation}.
+    */
+    static public Object load (CallContext context, Yaml yaml, Reader reader) {
+        return ((PooledYaml) yaml).load(reader, YAMLLimits.getCurrent(context));
+    }
+
+    static public Iterator<Object> loadAll (CallContext context, Yaml yaml, Reader reader) {
+        return ((PooledYaml) yaml).loadAll(reader, YAMLLimits.getCurrent(context));
+    }
+
+    static public void release (CallContext context, Yaml yaml) {
+        if ((yaml instanceof PooledYaml) == false) { return; }
+        PooledYaml pooled = (PooledYaml) yaml;
+        if (pooled.generation != generation) { return; }
+        if (pooled.idle != null) {
+            pooled.idle.offer(pooled);
+        } else {
+            pooled.in_use = false;
+        }
+    }
+}
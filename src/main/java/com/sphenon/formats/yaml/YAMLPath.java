@@ -0,0 +1,678 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+   Compiled path expression over parsed YAML trees, in a JSONPath like
+   syntax:
+
+   <pre>
+     $                 the node the path is applied to (optional)
+     .key  ['key']     mapping entry
+     [2]  [-1]         sequence element, negative from the end
+     [1:3]             sequence slice
+     ['a','b']  [0,2]  unions
+     .*  [*]           all entries or elements, also of sets
+     ..key  ..*        recursive descent
+     [?(expr)]         entries or elements for which expr holds
+   </pre>
+
+   Keys are matched by their text, so <code>.1</code> or <code>['true']</code>
+   also select entries with integer or boolean keys.
+
+   Filter expressions compare relative paths (<code>@.price</code>,
+   <code>@</code>) with literals ('text', 42, 1.5, true, false, null)
+   using == != &lt; &lt;= &gt; &gt;=, test existence (<code>@.key</code>),
+   and combine with &amp;&amp;, || , ! and parentheses.
+
+   Compiled paths are immutable and may be evaluated concurrently. Use
+   {@link #get} to share compiled instances via a bounded LRU cache
+   (size "com.sphenon.formats.yaml.PathCacheSize", default 256).
+*/
+public class YAMLPath {
+    static final public Class _class = YAMLPath.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected class CacheEntry {
+        protected YAMLPath      path;
+        protected volatile long last_access;
+    }
+
+    static protected ConcurrentHashMap<String,CacheEntry> cache = new ConcurrentHashMap<String,CacheEntry>();
+    static protected AtomicLong clock = new AtomicLong();
+    static protected int cache_size;
+    static { cache_size = YAMLPackageInitialiser.getConfiguration().get(RootContext.getInitialisationContext(), "PathCacheSize", 256); };
+
+    /**
+       Returns the compiled path from the cache, compiling it on a miss.
+       Lookups do not lock; when the cache is full, the least recently
+       used entry is evicted. The access clock only advances on misses,
+       so hits merely record the current tick, which is accurate enough
+       since entries are only evicted on misses.
+    */
+    static public YAMLPath get (final CallContext context, final String path) {
+        CacheEntry entry = cache.get(path);
+        if (entry == null) {
+            entry = cache.computeIfAbsent(path, new Function<String,CacheEntry>() {
+                public CacheEntry apply(String key) {
+                    CacheEntry created = new CacheEntry();
+                    created.path = compile(context, key);
+                    created.last_access = clock.incrementAndGet();
+                    return created;
+                }
+            });
+            if (cache.size() > cache_size) {
+                evict(context);
+            }
+        } else {
+            long now = clock.get();
+            if (entry.last_access != now) {
+                entry.last_access = now;
+            }
+        }
+        return entry.path;
+    }
+
+    static protected synchronized void evict (CallContext context) {
+        while (cache.size() > cache_size && cache.isEmpty() == false) {
+            String eldest = null;
+            long   oldest = Long.MAX_VALUE;
+            for (Map.Entry<String,CacheEntry> entry : cache.entrySet()) {
+                if (entry.getValue().last_access < oldest) {
+                    oldest = entry.getValue().last_access;
+                    eldest = entry.getKey();
+                }
+            }
+            cache.remove(eldest);
+            if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "YAML path cache evicted '%(path)'", "path", eldest); }
+        }
+    }
+
+    protected String expression;
+    protected Step[] steps;
+
+    protected YAMLPath (String expression, Step[] steps) {
+        this.expression = expression;
+        this.steps      = steps;
+    }
+
+    public String getExpression (CallContext context) {
+        return this.expression;
+    }
+
+    public String toString () {
+        return this.expression;
+    }
+
+    /**
+       Receives matches; returning false stops the evaluation.
+    */
+    static protected interface Sink {
+        public boolean accept(Object node);
+    }
+
+    static protected class Result implements Sink {
+        protected Object[] nodes = new Object[8];
+        protected int      count;
+
+        public boolean accept(Object node) {
+            if (this.count == this.nodes.length) {
+                this.nodes = Arrays.copyOf(this.nodes, this.count * 2);
+            }
+            this.nodes[this.count++] = node;
+            return true;
+        }
+    }
+
+    static protected class First implements Sink {
+        protected Object node = NONE;
+
+        public boolean accept(Object node) {
+            this.node = node;
+            return false;
+        }
+    }
+
+    static protected final Object NONE = new Object();
+
+    /**
+       Evaluates the path on every node of the given YAMLNode.
+    */
+    public YAMLNode evaluate (CallContext context, YAMLNode yaml_node) {
+        Result result = new Result();
+        int count = yaml_node.getNodeCount(context);
+        for (int i=0; i<count; i++) {
+            evaluate(this.steps, yaml_node.getNode(i), 0, result);
+        }
+        return new YAMLNode(context, result.nodes, result.count, null);
+    }
+
+    /**
+       Evaluates the path on a plain parsed tree.
+    */
+    public YAMLNode evaluate (CallContext context, Object node) {
+        Result result = new Result();
+        evaluate(this.steps, node, 0, result);
+        return new YAMLNode(context, result.nodes, result.count, null);
+    }
+
+    /**
+       @return the first match, or null if there is none
+    */
+    public Object evaluateFirst (CallContext context, Object node) {
+        Object first = first(this.steps, node);
+        return first == NONE ? null : first;
+    }
+
+    static protected boolean evaluate (Step[] steps, Object node, int step, Sink sink) {
+        return step == steps.length ? sink.accept(node) : steps[step].apply(steps, node, step, sink);
+    }
+
+    static protected Object first (Step[] steps, Object node) {
+        if (steps.length == 0) { return node; }
+        First first = new First();
+        evaluate(steps, node, 0, first);
+        return first.node;
+    }
+
+    static abstract protected class Step {
+        /**
+           Applies this step to the node and passes each selected node to
+           the following steps.
+
+           @return false if the sink requested to stop
+        */
+        abstract protected boolean apply(Step[] steps, Object node, int step, Sink sink);
+    }
+
+    static protected class KeyStep extends Step {
+        protected String[] keys;
+        protected Object[] alternates;
+        protected KeyStep(String[] keys) {
+            this.keys = keys;
+            this.alternates = new Object[keys.length];
+            for (int k=0; k<keys.length; k++) {
+                this.alternates[k] = alternate(keys[k]);
+            }
+        }
+
+        /**
+           Resolves the non-string key whose text form equals the given
+           text (an Integer, Long, Double, Boolean or null), or NONE if
+           there is none, so that lookups need not scan the map.
+        */
+        static protected Object alternate(String key) {
+            if (key.equals("true"))  { return Boolean.TRUE; }
+            if (key.equals("false")) { return Boolean.FALSE; }
+            if (key.equals("null"))  { return null; }
+            Object number;
+            try {
+                long value = Long.parseLong(key);
+                number = (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value));
+            } catch (NumberFormatException nfe) {
+                try {
+                    number = Double.valueOf(key);
+                } catch (NumberFormatException nfe2) {
+                    return NONE;
+                }
+            }
+            return key.equals(String.valueOf(number)) ? number : NONE;
+        }
+
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            if (node instanceof Map) {
+                Map<?,?> map = (Map<?,?>) node;
+                for (int k=0; k<this.keys.length; k++) {
+                    Object key   = this.keys[k];
+                    Object child = map.get(key);
+                    if (child == null && map.containsKey(key) == false) {
+                        key = this.alternates[k];
+                        if (key == NONE) { continue; }
+                        child = map.get(key);
+                        if (child == null && map.containsKey(key) == false) { continue; }
+                    }
+                    if (evaluate(steps, child, step + 1, sink) == false) { return false; }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class IndexStep extends Step {
+        protected int[] indices;
+        protected IndexStep(int[] indices) { this.indices = indices; }
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            if (node instanceof List) {
+                List<?> list = (List<?>) node;
+                int size = list.size();
+                for (int index : this.indices) {
+                    int i = (index < 0 ? size + index : index);
+                    if (i >= 0 && i < size && evaluate(steps, list.get(i), step + 1, sink) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class SliceStep extends Step {
+        protected Integer start;
+        protected Integer end;
+        protected SliceStep(Integer start, Integer end) { this.start = start; this.end = end; }
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            if (node instanceof List) {
+                List<?> list = (List<?>) node;
+                int size = list.size();
+                int from = (this.start == null ? 0    : this.start < 0 ? Math.max(0, size + this.start) : Math.min(size, this.start));
+                int to   = (this.end   == null ? size : this.end   < 0 ? Math.max(0, size + this.end)   : Math.min(size, this.end));
+                for (int i=from; i<to; i++) {
+                    if (evaluate(steps, list.get(i), step + 1, sink) == false) { return false; }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected Collection<?> children (Object node) {
+        return node instanceof Map ? ((Map<?,?>) node).values() : node instanceof Collection ? (Collection<?>) node : null;
+    }
+
+    static protected class WildcardStep extends Step {
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            Collection<?> children = children(node);
+            if (children != null) {
+                for (Object child : children) {
+                    if (evaluate(steps, child, step + 1, sink) == false) { return false; }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+       Applies the following steps to the node and all its descendants;
+       shared (aliased) collections are visited once.
+    */
+    static protected class DescendantStep extends Step {
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            return this.descend(steps, node, step, sink, new IdentityHashMap<Object,Object>());
+        }
+        protected boolean descend(Step[] steps, Object node, int step, Sink sink, IdentityHashMap<Object,Object> visited) {
+            if (evaluate(steps, node, step + 1, sink) == false) { return false; }
+            Collection<?> children = children(node);
+            if (children != null && visited.put(node, node) == null) {
+                for (Object child : children) {
+                    if (this.descend(steps, child, step, sink, visited) == false) { return false; }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class FilterStep extends Step {
+        protected Predicate predicate;
+        protected FilterStep(Predicate predicate) { this.predicate = predicate; }
+        protected boolean apply(Step[] steps, Object node, int step, Sink sink) {
+            Collection<?> children = children(node);
+            if (children != null) {
+                for (Object child : children) {
+                    if (this.predicate.test(child) && evaluate(steps, child, step + 1, sink) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static abstract protected class Predicate {
+        abstract protected boolean test(Object node);
+    }
+
+    static protected class Or extends Predicate {
+        protected Predicate left, right;
+        protected Or(Predicate left, Predicate right) { this.left = left; this.right = right; }
+        protected boolean test(Object node) { return this.left.test(node) || this.right.test(node); }
+    }
+
+    static protected class And extends Predicate {
+        protected Predicate left, right;
+        protected And(Predicate left, Predicate right) { this.left = left; this.right = right; }
+        protected boolean test(Object node) { return this.left.test(node) && this.right.test(node); }
+    }
+
+    static protected class Not extends Predicate {
+        protected Predicate operand;
+        protected Not(Predicate operand) { this.operand = operand; }
+        protected boolean test(Object node) { return this.operand.test(node) == false; }
+    }
+
+    static protected class Exists extends Predicate {
+        protected Step[] steps;
+        protected Exists(Step[] steps) { this.steps = steps; }
+        protected boolean test(Object node) { return first(this.steps, node) != NONE; }
+    }
+
+    static protected class Comparison extends Predicate {
+        protected Step[] left_steps;
+        protected Object left_literal;
+        protected String operator;
+        protected Step[] right_steps;
+        protected Object right_literal;
+
+        protected boolean test(Object node) {
+            Object left  = (this.left_steps  == null ? this.left_literal  : first(this.left_steps,  node));
+            Object right = (this.right_steps == null ? this.right_literal : first(this.right_steps, node));
+            if (left == NONE || right == NONE) { return false; }
+            if (this.operator.equals("==")) { return equal(left, right); }
+            if (this.operator.equals("!=")) { return equal(left, right) == false; }
+            int c;
+            if (left instanceof Number && right instanceof Number) {
+                c = Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+            } else if (left instanceof String && right instanceof String) {
+                c = ((String) left).compareTo((String) right);
+            } else {
+                return false;
+            }
+            return this.operator.equals("<")  ? c <  0 :
+                   this.operator.equals("<=") ? c <= 0 :
+                   this.operator.equals(">")  ? c >  0 :
+                                                c >= 0;
+        }
+
+        static protected boolean equal(Object left, Object right) {
+            if (left == null || right == null) { return left == right; }
+            if (left instanceof Number && right instanceof Number) {
+                return ((Number) left).doubleValue() == ((Number) right).doubleValue();
+            }
+            return left.equals(right);
+        }
+    }
+
+    static public YAMLPath compile (CallContext context, String expression) {
+        Compiler compiler = new Compiler(context, expression);
+        Step[] steps = compiler.compilePath(true);
+        if (compiler.position != expression.length()) {
+            compiler.fail("unexpected '" + expression.charAt(compiler.position) + "'");
+        }
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Compiled YAML path '%(path)' into '%(steps)' steps", "path", expression, "steps", steps.length); }
+        return new YAMLPath(expression, steps);
+    }
+
+    static protected class Compiler {
+        protected CallContext context;
+        protected String      expression;
+        protected int         position;
+
+        protected Compiler(CallContext context, String expression) {
+            this.context    = context;
+            this.expression = expression;
+        }
+
+        protected void fail(String reason) {
+            CustomaryContext.create((Context)this.context).throwConfigurationError(this.context, "Could not compile YAML path '%(path)' at position '%(position)': %(reason)", "path", this.expression, "position", this.position, "reason", reason);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+
+        protected boolean atEnd() {
+            return this.position >= this.expression.length();
+        }
+
+        protected char peek() {
+            return this.atEnd() ? '\0' : this.expression.charAt(this.position);
+        }
+
+        protected boolean lookingAt(String token) {
+            return this.expression.startsWith(token, this.position);
+        }
+
+        protected void skipSpaces() {
+            while (this.atEnd() == false && Character.isWhitespace(this.peek())) { this.position++; }
+        }
+
+        protected void expect(char c) {
+            this.skipSpaces();
+            if (this.peek() != c) { this.fail("expected '" + c + "'"); }
+            this.position++;
+        }
+
+        /**
+           @param absolute true for a top level path, which may start with
+                  '$' and a bare key; relative paths start with '@'
+        */
+        protected Step[] compilePath(boolean absolute) {
+            ArrayList<Step> steps = new ArrayList<Step>();
+            if (absolute) {
+                if (this.peek() == '$') {
+                    this.position++;
+                } else if (this.atEnd() == false && this.peek() != '.' && this.peek() != '[') {
+                    steps.add(new KeyStep(new String[] { this.name() }));
+                }
+            } else {
+                this.position++; // '@'
+            }
+            while (this.atEnd() == false) {
+                char c = this.peek();
+                if (c == '.') {
+                    if (this.lookingAt("..")) {
+                        this.position += 2;
+                        steps.add(new DescendantStep());
+                        if (this.peek() == '[') { continue; }
+                    } else {
+                        this.position++;
+                    }
+                    if (this.peek() == '*') {
+                        this.position++;
+                        steps.add(new WildcardStep());
+                    } else {
+                        steps.add(new KeyStep(new String[] { this.name() }));
+                    }
+                } else if (c == '[') {
+                    this.position++;
+                    steps.add(this.bracket());
+                } else {
+                    break;
+                }
+            }
+            return steps.toArray(new Step[steps.size()]);
+        }
+
+        protected String name() {
+            int start = this.position;
+            while (this.atEnd() == false) {
+                char c = this.peek();
+                if (c == '.' || c == '[' || c == ']' || c == ' ' || c == '=' || c == '!' || c == '<' || c == '>' || c == '&' || c == '|' || c == ')') { break; }
+                this.position++;
+            }
+            if (start == this.position) { this.fail("expected key"); }
+            return this.expression.substring(start, this.position);
+        }
+
+        protected Step bracket() {
+            this.skipSpaces();
+            char c = this.peek();
+            Step step;
+            if (c == '*') {
+                this.position++;
+                step = new WildcardStep();
+            } else if (c == '?') {
+                this.position++;
+                this.expect('(');
+                Predicate predicate = this.or();
+                this.expect(')');
+                step = new FilterStep(predicate);
+            } else if (c == '\'' || c == '"') {
+                ArrayList<String> keys = new ArrayList<String>();
+                do {
+                    this.skipSpaces();
+                    keys.add(this.string());
+                    this.skipSpaces();
+                } while (this.peek() == ',' && ++this.position > 0);
+                step = new KeyStep(keys.toArray(new String[keys.size()]));
+            } else {
+                Integer first = (this.peek() == ':' ? null : this.integer());
+                this.skipSpaces();
+                if (this.peek() == ':') {
+                    this.position++;
+                    this.skipSpaces();
+                    Integer end = (this.peek() == ']' ? null : this.integer());
+                    step = new SliceStep(first, end);
+                } else {
+                    ArrayList<Integer> indices = new ArrayList<Integer>();
+                    indices.add(first);
+                    while (this.peek() == ',') {
+                        this.position++;
+                        this.skipSpaces();
+                        indices.add(this.integer());
+                        this.skipSpaces();
+                    }
+                    int[] array = new int[indices.size()];
+                    for (int i=0; i<array.length; i++) { array[i] = indices.get(i); }
+                    step = new IndexStep(array);
+                }
+            }
+            this.expect(']');
+            return step;
+        }
+
+        protected int integer() {
+            int start = this.position;
+            if (this.peek() == '-') { this.position++; }
+            while (this.atEnd() == false && Character.isDigit(this.peek())) { this.position++; }
+            try {
+                return Integer.parseInt(this.expression.substring(start, this.position));
+            } catch (NumberFormatException nfe) {
+                this.position = start;
+                this.fail("expected index");
+                throw (ExceptionConfigurationError) null; // compiler insists
+            }
+        }
+
+        protected String string() {
+            char quote = this.peek();
+            if (quote != '\'' && quote != '"') { this.fail("expected quoted string"); }
+            this.position++;
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (this.atEnd()) { this.fail("unterminated string"); }
+                char c = this.expression.charAt(this.position++);
+                if (c == quote) { break; }
+                if (c == '\\' && this.atEnd() == false) { c = this.expression.charAt(this.position++); }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        protected Predicate or() {
+            Predicate left = this.and();
+            this.skipSpaces();
+            while (this.lookingAt("||")) {
+                this.position += 2;
+                left = new Or(left, this.and());
+                this.skipSpaces();
+            }
+            return left;
+        }
+
+        protected Predicate and() {
+            Predicate left = this.unary();
+            this.skipSpaces();
+            while (this.lookingAt("&&")) {
+                this.position += 2;
+                left = new And(left, this.unary());
+                this.skipSpaces();
+            }
+            return left;
+        }
+
+        protected Predicate unary() {
+            this.skipSpaces();
+            if (this.peek() == '!' && this.lookingAt("!=") == false) {
+                this.position++;
+                return new Not(this.unary());
+            }
+            if (this.peek() == '(') {
+                this.position++;
+                Predicate predicate = this.or();
+                this.expect(')');
+                return predicate;
+            }
+            Comparison comparison = new Comparison();
+            if (this.peek() == '@') {
+                comparison.left_steps = this.compilePath(false);
+            } else {
+                comparison.left_literal = this.literal();
+            }
+            this.skipSpaces();
+            for (String operator : new String[] { "==", "!=", "<=", ">=", "<", ">" }) {
+                if (this.lookingAt(operator)) {
+                    comparison.operator = operator;
+                    break;
+                }
+            }
+            if (comparison.operator == null) {
+                if (comparison.left_steps == null) { this.fail("expected comparison operator"); }
+                return new Exists(comparison.left_steps);
+            }
+            this.position += comparison.operator.length();
+            this.skipSpaces();
+            if (this.peek() == '@') {
+                comparison.right_steps = this.compilePath(false);
+            } else {
+                comparison.right_literal = this.literal();
+            }
+            return comparison;
+        }
+
+        protected Object literal() {
+            char c = this.peek();
+            if (c == '\'' || c == '"') { return this.string(); }
+            if (this.lookingAt("true"))  { this.position += 4; return Boolean.TRUE; }
+            if (this.lookingAt("false")) { this.position += 5; return Boolean.FALSE; }
+            if (this.lookingAt("null"))  { this.position += 4; return null; }
+            int start = this.position;
+            if (c == '-' || c == '+') { this.position++; }
+            while (this.atEnd() == false && (Character.isDigit(this.peek()) || this.peek() == '.' || this.peek() == 'e' || this.peek() == 'E')) { this.position++; }
+            String number = this.expression.substring(start, this.position);
+            try {
+                if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+                    return Long.valueOf(number);
+                }
+                return Double.valueOf(number);
+            } catch (NumberFormatException nfe) {
+                this.position = start;
+                this.fail("expected literal");
+                throw (ExceptionConfigurationError) null; // compiler insists
+            }
+        }
+    }
+}
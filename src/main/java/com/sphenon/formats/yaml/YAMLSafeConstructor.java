@@ -0,0 +1,114 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import org.yaml.snakeyaml.constructor.AbstractConstruct;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.nodes.MappingNode;
+import org.yaml.snakeyaml.nodes.Node;
+import org.yaml.snakeyaml.nodes.ScalarNode;
+import org.yaml.snakeyaml.nodes.Tag;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+   SafeConstructor for scalars resolved by {@link YAMLScalarResolver}:
+   integers and floats are parsed in the YAML 1.2 notations (e.g. "0o17"
+   is octal, "017" decimal), without the YAML 1.1 underscore, binary and
+   sexagesimal forms, which also spares the regular expressions used by
+   SnakeYAML's number constructors. Optionally constructs mappings with
+   merge keys as {@link YAMLMergeOverlay}.
+*/
+public class YAMLSafeConstructor extends SafeConstructor {
+
+    protected boolean share_merges;
+
+    protected YAMLMergeOverlay.Constructor merge_steps = new YAMLMergeOverlay.Constructor() {
+        public Map<Object,Object> createDefaultMap (int size) {
+            return YAMLSafeConstructor.this.createDefaultMap(size);
+        }
+        public void constructMapping2ndStep (MappingNode node, Map<Object,Object> mapping) {
+            YAMLSafeConstructor.this.constructMapping2ndStep(node, mapping);
+        }
+        public Object constructObject (Node node) {
+            return YAMLSafeConstructor.this.constructObject(node);
+        }
+    };
+
+    public YAMLSafeConstructor () {
+        this(false);
+    }
+
+    public YAMLSafeConstructor (boolean share_merges) {
+        this.share_merges = share_merges;
+        this.yamlConstructors.put(Tag.INT, new ConstructInteger());
+        this.yamlConstructors.put(Tag.FLOAT, new ConstructFloat());
+    }
+
+    protected Map<Object,Object> constructMapping (MappingNode node) {
+        YAMLMergeOverlay overlay = (this.share_merges ? YAMLMergeOverlay.construct(node, this.merge_steps) : null);
+        return (overlay != null ? overlay : super.constructMapping(node));
+    }
+
+    protected class ConstructInteger extends AbstractConstruct {
+        public Object construct (Node node) {
+            String value = ((ScalarNode) node).getValue();
+            int start = 0;
+            boolean negative = false;
+            if (value.charAt(0) == '-' || value.charAt(0) == '+') {
+                negative = (value.charAt(0) == '-');
+                start = 1;
+            }
+            int radix = 10;
+            if (value.startsWith("0o", start)) {
+                radix = 8;
+                start += 2;
+            } else if (value.startsWith("0x", start)) {
+                radix = 16;
+                start += 2;
+            }
+            return createNumber(value.substring(start), radix, negative);
+        }
+    }
+
+    /**
+       Integer if it fits, else Long, else BigInteger, like SnakeYAML.
+    */
+    static protected Number createNumber (String digits, int radix, boolean negative) {
+        if (digits.length() <= (radix == 10 ? 18 : radix == 8 ? 20 : 15)) {
+            long number = Long.parseLong(digits, radix);
+            if (negative) { number = -number; }
+            if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) { return Integer.valueOf((int) number); }
+            return Long.valueOf(number);
+        }
+        BigInteger number = new BigInteger(digits, radix);
+        if (negative) { number = number.negate(); }
+        return (number.bitLength() < 64 ? (Number) Long.valueOf(number.longValue()) : number);
+    }
+
+    protected class ConstructFloat extends AbstractConstruct {
+        public Object construct (Node node) {
+            String value = ((ScalarNode) node).getValue();
+            int start = (value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0);
+            if (value.startsWith(".", start) && value.length() == start + 4) {
+                char c = value.charAt(start + 1);
+                if (c == 'i' || c == 'I') { return (value.charAt(0) == '-' ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY); }
+                if (c == 'n' || c == 'N') { return Double.NaN; }
+            }
+            return Double.valueOf(value);
+        }
+    }
+}
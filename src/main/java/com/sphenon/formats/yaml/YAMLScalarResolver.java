@@ -0,0 +1,142 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+/**
+   Resolves plain scalars according to the YAML 1.2 core or JSON schema
+   by looking at their characters once, instead of trying one regular
+   expression after the other as SnakeYAML's Resolver does.
+
+   Besides the schema's types, the core variant keeps "&lt;&lt;" as merge key.
+   Values which are not valid in the JSON schema are read as strings.
+*/
+public class YAMLScalarResolver extends Resolver {
+
+    protected boolean json;
+
+    public YAMLScalarResolver (boolean json) {
+        this.json = json;
+    }
+
+    protected void addImplicitResolvers () {
+        // not used, see resolve
+    }
+
+    public Tag resolve (NodeId kind, String value, boolean implicit) {
+        if (kind == NodeId.scalar && implicit) {
+            return (this.json ? resolveJSON(value) : resolveCore(value));
+        }
+        return super.resolve(kind, value, implicit);
+    }
+
+    static public Tag resolveCore (String value) {
+        int length = value.length();
+        if (length == 0) { return Tag.NULL; }
+        switch (value.charAt(0)) {
+            case '~' :
+                return (length == 1 ? Tag.NULL : Tag.STR);
+            case 'n' : case 'N' :
+                return (value.equals("null") || value.equals("Null") || value.equals("NULL") ? Tag.NULL : Tag.STR);
+            case 't' : case 'T' :
+                return (value.equals("true") || value.equals("True") || value.equals("TRUE") ? Tag.BOOL : Tag.STR);
+            case 'f' : case 'F' :
+                return (value.equals("false") || value.equals("False") || value.equals("FALSE") ? Tag.BOOL : Tag.STR);
+            case '<' :
+                return (value.equals("<<") ? Tag.MERGE : Tag.STR);
+            case '0' :
+                if (length > 2 && value.charAt(1) == 'o') { return (isDigits(value, 2, 8) ? Tag.INT : Tag.STR); }
+                if (length > 2 && value.charAt(1) == 'x') { return (isDigits(value, 2, 16) ? Tag.INT : Tag.STR); }
+                return resolveDecimal(value, 0, false);
+            case '1' : case '2' : case '3' : case '4' : case '5' : case '6' : case '7' : case '8' : case '9' :
+                return resolveDecimal(value, 0, false);
+            case '+' : case '-' :
+                if (length > 1 && value.charAt(1) == '.' && isInfinity(value, 1)) { return Tag.FLOAT; }
+                return resolveDecimal(value, 1, false);
+            case '.' :
+                if (isInfinity(value, 0) || value.equals(".nan") || value.equals(".NaN") || value.equals(".NAN")) { return Tag.FLOAT; }
+                return resolveDecimal(value, 0, false);
+            default :
+                return Tag.STR;
+        }
+    }
+
+    static public Tag resolveJSON (String value) {
+        int length = value.length();
+        if (length == 0) { return Tag.STR; }
+        switch (value.charAt(0)) {
+            case 'n' :
+                return (value.equals("null") ? Tag.NULL : Tag.STR);
+            case 't' :
+                return (value.equals("true") ? Tag.BOOL : Tag.STR);
+            case 'f' :
+                return (value.equals("false") ? Tag.BOOL : Tag.STR);
+            case '-' :
+                return resolveDecimal(value, 1, true);
+            case '0' : case '1' : case '2' : case '3' : case '4' : case '5' : case '6' : case '7' : case '8' : case '9' :
+                return resolveDecimal(value, 0, true);
+            default :
+                return Tag.STR;
+        }
+    }
+
+    /**
+       Classifies [0-9]+ as INT and [0-9]*(.[0-9]*)?([eE][-+]?[0-9]+)? with
+       at least one digit as FLOAT, starting at the given position; JSON
+       additionally forbids leading zeros and a dot without digits on
+       both sides.
+    */
+    static protected Tag resolveDecimal (String value, int start, boolean json) {
+        int length = value.length();
+        int i = start;
+        int integer_digits = 0;
+        while (i < length && isDigit(value.charAt(i))) { i++; integer_digits++; }
+        if (json && (integer_digits == 0 || (integer_digits > 1 && value.charAt(start) == '0'))) { return Tag.STR; }
+        if (i == length) { return (integer_digits > 0 ? Tag.INT : Tag.STR); }
+        int fraction_digits = 0;
+        if (value.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(value.charAt(i))) { i++; fraction_digits++; }
+            if (json && fraction_digits == 0) { return Tag.STR; }
+        }
+        if (integer_digits + fraction_digits == 0) { return Tag.STR; }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) { i++; }
+            int exponent_digits = 0;
+            while (i < length && isDigit(value.charAt(i))) { i++; exponent_digits++; }
+            if (exponent_digits == 0) { return Tag.STR; }
+        }
+        return (i == length ? Tag.FLOAT : Tag.STR);
+    }
+
+    static protected boolean isDigit (char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static protected boolean isDigits (String value, int start, int radix) {
+        for (int i = start; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), radix) == -1) { return false; }
+        }
+        return true;
+    }
+
+    static protected boolean isInfinity (String value, int start) {
+        return value.length() == start + 4 && (value.startsWith(".inf", start) || value.startsWith(".Inf", start) || value.startsWith(".INF", start));
+    }
+}
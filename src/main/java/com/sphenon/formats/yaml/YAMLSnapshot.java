@@ -0,0 +1,429 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+   Binary snapshots of parsed YAML files, which load considerably faster
+   than the text they were parsed from.
+
+   {@link #load} reads the source file, and if a snapshot with the same
+   source length and CRC32 checksum exists, which was moreover taken with
+   the same loader settings (profile, shared merges and registered
+   constructor factory, see {@link YAMLParserPool}), decodes that;
+   otherwise it
+   parses the source and (re)writes the snapshot. Unreadable or corrupt
+   snapshots are treated like missing ones, and a tree which cannot be
+   represented (e.g. objects of custom constructors) is simply not
+   snapshotted.
+
+   Snapshots are written next to the source as "&lt;name&gt;.ysnap", or into
+   the directory given by configuration property
+   "com.sphenon.formats.yaml.SnapshotDirectory". If
+   "com.sphenon.formats.yaml.SnapshotsEnabled" is true (default false),
+   {@link YAMLNode#createYAMLNode(CallContext, Path)} uses snapshots.
+
+   Format, big endian: magic, version, source length and checksum,
+   a checksum of the loader settings, a
+   table of all distinct strings, the number of documents, and the
+   documents as tagged values. Collections are length prefixed and
+   numbered in order of appearance; a collection occurring more than once
+   (YAML aliases, also recursive ones) is written once and referenced by
+   number afterwards. Scalars keep their types: null, booleans, integers,
+   longs, big integers, doubles, strings, binary and timestamps.
+*/
+public class YAMLSnapshot {
+    static final public Class _class = YAMLSnapshot.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static final protected int  MAGIC   = 0x59534E50; // "YSNP"
+    static final protected int  VERSION = 2;
+
+    static final protected byte NULL       = 0;
+    static final protected byte TRUE       = 1;
+    static final protected byte FALSE      = 2;
+    static final protected byte INTEGER    = 3;
+    static final protected byte LONG       = 4;
+    static final protected byte BIGINTEGER = 5;
+    static final protected byte DOUBLE     = 6;
+    static final protected byte STRING     = 7;
+    static final protected byte BINARY     = 8;
+    static final protected byte DATE       = 9;
+    static final protected byte MAP        = 10;
+    static final protected byte LIST       = 11;
+    static final protected byte SET        = 12;
+    static final protected byte REFERENCE  = 13;
+
+    static protected volatile boolean enabled;
+    static protected volatile String  directory;
+
+    static {
+        Configuration config = YAMLPackageInitialiser.getConfiguration();
+        enabled   = config.get(RootContext.getInitialisationContext(), "SnapshotsEnabled", false);
+        directory = config.get(RootContext.getInitialisationContext(), "SnapshotDirectory", (String) null);
+    }
+
+    static public boolean isEnabled () {
+        return enabled;
+    }
+
+    /**
+       @param new_directory where to keep snapshots, null for next to the
+                            source files
+    */
+    static public void configure (CallContext context, boolean new_enabled, String new_directory) {
+        directory = new_directory;
+        enabled   = new_enabled;
+    }
+
+    static public Path getSnapshotPath (CallContext context, Path source) {
+        String name = source.getFileName().toString();
+        String dir  = directory;
+        if (dir == null || dir.isEmpty()) {
+            return source.resolveSibling(name + ".ysnap");
+        }
+        return Paths.get(dir, name + "-" + Integer.toHexString(source.toAbsolutePath().toString().hashCode()) + ".ysnap");
+    }
+
+    static public YAMLNode createYAMLNode (CallContext context, Path source) throws InvalidYAML {
+        return new YAMLNode(context, load(context, source));
+    }
+
+    /**
+       Returns the tree of the source file's document, from its snapshot
+       if that is up to date.
+    */
+    static public Object load (CallContext context, Path source) throws InvalidYAML {
+        return load(context, source, null);
+    }
+
+    /**
+       @param filter if not null, wraps the reader the source is parsed
+                     from, if it needs to be parsed
+    */
+    static public Object load (CallContext context, Path source, java.util.function.UnaryOperator<Reader> filter) throws InvalidYAML {
+        long start = YAMLMetrics.start();
+        ByteBuffer buffer;
+        try {
+            YAMLNode.checkFileSize(context, source);
+            buffer = YAMLNode.readFile(context, source);
+        } catch (InvalidYAML iy) {
+            throw YAMLMetrics.failed(YAMLMetrics.Kind.File, start, iy);
+        }
+        long length   = buffer.remaining();
+        long checksum = checksum(buffer);
+        long settings = settings(context);
+
+        Path snapshot = getSnapshotPath(context, source);
+        Object[] documents = read(context, snapshot, length, checksum, settings);
+        if (documents != null && documents.length == 1) {
+            if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Loaded YAML snapshot '%(snapshot)'", "snapshot", snapshot.toString()); }
+            return YAMLNode.prepareTree(context, documents[0]);
+        }
+
+        Reader reader = new ByteBufferReader(buffer);
+        if (filter != null) { reader = filter.apply(reader); }
+        Object tree = YAMLNode.parseYAML(context, reader, source.toString(), YAMLMetrics.Kind.File, start, length);
+        write(context, snapshot, length, checksum, settings, new Object[] { tree }, 1);
+        return tree;
+    }
+
+    static protected long checksum (ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return crc.getValue();
+    }
+
+    /**
+       Checksum of the loader settings which determine the parsed tree, a
+       snapshot taken with other settings is outdated.
+    */
+    static protected long settings (CallContext context) {
+        CRC32 crc = new CRC32();
+        crc.update(YAMLParserPool.getSettings(context).getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+       Writes a snapshot of the node's documents, tagged with the source's
+       length and checksum; failures are traced, not thrown.
+
+       @return whether the snapshot was written
+    */
+    static public boolean write (CallContext context, Path snapshot, YAMLNode node, Path source) {
+        ByteBuffer buffer = YAMLNode.readFile(context, source);
+        Object[] documents = new Object[node.getNodeCount(context)];
+        for (int d = 0; d < documents.length; d++) { documents[d] = node.getYamlNode(context, d); }
+        return write(context, snapshot, buffer.remaining(), checksum(buffer), settings(context), documents, documents.length);
+    }
+
+    static protected boolean write (CallContext context, Path snapshot, long length, long checksum, long settings, Object[] documents, int count) {
+        Path temporary = null;
+        try {
+            Encoder encoder = new Encoder();
+            for (int d = 0; d < count; d++) { encoder.collect(documents[d]); }
+            Path parent = snapshot.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            temporary = Files.createTempFile(parent, snapshot.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(length);
+                out.writeLong(checksum);
+                out.writeLong(settings);
+                encoder.writeStrings(out);
+                out.writeInt(count);
+                for (int d = 0; d < count; d++) { encoder.write(out, documents[d]); }
+                out.writeInt(MAGIC);
+            }
+            try {
+                Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Wrote YAML snapshot '%(snapshot)'", "snapshot", snapshot.toString()); }
+            return true;
+        } catch (IOException ioe) {
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "Could not write YAML snapshot '%(snapshot)': '%(reason)'", "snapshot", snapshot.toString(), "reason", ioe.toString()); }
+            if (temporary != null) {
+                try { Files.deleteIfExists(temporary); } catch (IOException ioe2) { }
+            }
+            return false;
+        }
+    }
+
+    /**
+       Decodes a snapshot, null if it does not exist, does not match the
+       source or the loader settings, or is corrupt.
+    */
+    static protected Object[] read (CallContext context, Path snapshot, long length, long checksum, long settings) {
+        if (Files.isRegularFile(snapshot) == false) { return null; }
+        try {
+            ByteBuffer buffer = YAMLNode.readFile(context, snapshot);
+            if (buffer.remaining() < 32 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            if (buffer.getLong() != length || buffer.getLong() != checksum || buffer.getLong() != settings) {
+                if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "YAML snapshot '%(snapshot)' is outdated", "snapshot", snapshot.toString()); }
+                return null;
+            }
+            Decoder decoder = new Decoder(buffer);
+            decoder.readStrings();
+            Object[] documents = new Object[buffer.getInt()];
+            for (int d = 0; d < documents.length; d++) { documents[d] = decoder.read(); }
+            if (buffer.getInt() != MAGIC) { throw new IOException("trailer missing"); }
+            return documents;
+        } catch (IOException | RuntimeException e) {
+            if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MONITORING, "Ignoring unreadable YAML snapshot '%(snapshot)': '%(reason)'", "snapshot", snapshot.toString(), "reason", e.toString()); }
+            return null;
+        }
+    }
+
+    static protected class Encoder {
+        protected HashMap<String,Integer>         strings     = new HashMap<String,Integer>();
+        protected ArrayList<String>               string_list = new ArrayList<String>();
+        protected IdentityHashMap<Object,Integer> collections = new IdentityHashMap<Object,Integer>();
+        protected IdentityHashMap<Object,Object>  collected   = new IdentityHashMap<Object,Object>();
+
+        protected void collect (Object node) throws IOException {
+            if (node instanceof String) {
+                String string = (String) node;
+                if (this.strings.containsKey(string) == false) {
+                    this.strings.put(string, this.string_list.size());
+                    this.string_list.add(string);
+                }
+            } else if (node instanceof Map || node instanceof Collection) {
+                if (this.collected.put(node, node) != null) { return; }
+                if (node instanceof Map) {
+                    for (Map.Entry<?,?> entry : ((Map<?,?>) node).entrySet()) {
+                        this.collect(entry.getKey());
+                        this.collect(entry.getValue());
+                    }
+                } else {
+                    for (Object element : (Collection<?>) node) { this.collect(element); }
+                }
+            } else if (node != null && (node instanceof Boolean || node instanceof Integer || node instanceof Long || node instanceof BigInteger || node instanceof Double || node instanceof byte[] || node instanceof Date) == false) {
+                throw new IOException("cannot represent '" + node.getClass().getName() + "'");
+            }
+        }
+
+        protected void writeStrings (DataOutputStream out) throws IOException {
+            out.writeInt(this.string_list.size());
+            for (String string : this.string_list) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        protected void write (DataOutputStream out, Object node) throws IOException {
+            if (node == null) {
+                out.writeByte(NULL);
+            } else if (node instanceof String) {
+                out.writeByte(STRING);
+                out.writeInt(this.strings.get(node));
+            } else if (node instanceof Boolean) {
+                out.writeByte(((Boolean) node) ? TRUE : FALSE);
+            } else if (node instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) node);
+            } else if (node instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) node);
+            } else if (node instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) node);
+            } else if (node instanceof BigInteger) {
+                this.writeBytes(out, BIGINTEGER, ((BigInteger) node).toByteArray());
+            } else if (node instanceof byte[]) {
+                this.writeBytes(out, BINARY, (byte[]) node);
+            } else if (node instanceof Date) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) node).getTime());
+            } else {
+                Integer number = this.collections.get(node);
+                if (number != null) {
+                    out.writeByte(REFERENCE);
+                    out.writeInt(number);
+                    return;
+                }
+                this.collections.put(node, this.collections.size());
+                if (node instanceof Map) {
+                    Map<?,?> map = (Map<?,?>) node;
+                    out.writeByte(MAP);
+                    out.writeInt(map.size());
+                    for (Map.Entry<?,?> entry : map.entrySet()) {
+                        this.write(out, entry.getKey());
+                        this.write(out, entry.getValue());
+                    }
+                } else {
+                    Collection<?> collection = (Collection<?>) node;
+                    out.writeByte(node instanceof Set ? SET : LIST);
+                    out.writeInt(collection.size());
+                    for (Object element : collection) { this.write(out, element); }
+                }
+            }
+        }
+
+        protected void writeBytes (DataOutputStream out, byte tag, byte[] bytes) throws IOException {
+            out.writeByte(tag);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static protected class Decoder {
+        protected ByteBuffer        buffer;
+        protected String[]          strings;
+        protected ArrayList<Object> collections = new ArrayList<Object>();
+        protected byte[]            scratch     = new byte[256];
+
+        protected Decoder (ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        protected void readStrings () throws IOException {
+            this.strings = new String[this.readLength()];
+            for (int s = 0; s < this.strings.length; s++) {
+                int length = this.readLength();
+                if (this.buffer.hasArray()) {
+                    int position = this.buffer.position();
+                    this.strings[s] = new String(this.buffer.array(), this.buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+                    this.buffer.position(position + length);
+                } else {
+                    if (length > this.scratch.length) { this.scratch = new byte[Math.max(length, this.scratch.length * 2)]; }
+                    this.buffer.get(this.scratch, 0, length);
+                    this.strings[s] = new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        protected int readLength () throws IOException {
+            int length = this.buffer.getInt();
+            if (length < 0 || length > this.buffer.remaining()) { throw new IOException("invalid length " + length); }
+            return length;
+        }
+
+        protected Object read () throws IOException {
+            byte tag = this.buffer.get();
+            switch (tag) {
+                case NULL       : return null;
+                case TRUE       : return Boolean.TRUE;
+                case FALSE      : return Boolean.FALSE;
+                case INTEGER    : return this.buffer.getInt();
+                case LONG       : return this.buffer.getLong();
+                case DOUBLE     : return this.buffer.getDouble();
+                case STRING     : return this.strings[this.buffer.getInt()];
+                case BIGINTEGER : return new BigInteger(this.readBytes());
+                case BINARY     : return this.readBytes();
+                case DATE       : return new Date(this.buffer.getLong());
+                case REFERENCE  : return this.collections.get(this.buffer.getInt());
+                case MAP        : {
+                    int size = this.readLength();
+                    LinkedHashMap<Object,Object> map = new LinkedHashMap<Object,Object>(size * 4 / 3 + 1);
+                    this.collections.add(map);
+                    for (int e = 0; e < size; e++) {
+                        Object key = this.read();
+                        map.put(key, this.read());
+                    }
+                    return map;
+                }
+                case LIST       : {
+                    int size = this.readLength();
+                    ArrayList<Object> list = new ArrayList<Object>(size);
+                    this.collections.add(list);
+                    for (int e = 0; e < size; e++) { list.add(this.read()); }
+                    return list;
+                }
+                case SET        : {
+                    int size = this.readLength();
+                    LinkedHashSet<Object> set = new LinkedHashSet<Object>(size * 4 / 3 + 1);
+                    this.collections.add(set);
+                    for (int e = 0; e < size; e++) { set.add(this.read()); }
+                    return set;
+                }
+                default         : throw new IOException("invalid tag " + tag);
+            }
+        }
+
+        protected byte[] readBytes () throws IOException {
+            byte[] bytes = new byte[this.readLength()];
+            this.buffer.get(bytes);
+            return bytes;
+        }
+    }
+}
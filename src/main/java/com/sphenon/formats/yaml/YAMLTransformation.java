@@ -0,0 +1,497 @@
+package com.sphenon.formats.yaml;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.yaml.returncodes.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+   Pipeline of restructuring stages applied to parsed YAML trees, in
+   place of the former XSLT based transform.
+
+   Each stage works on the mappings at a location, given as dot separated
+   keys relative to the root, where "*" stands for all entries or
+   elements, a number for a sequence index, and "" for the root itself:
+
+   <pre>
+     rename  : { at: servers.*, from: host, to: hostname }
+     drop    : { at: "", key: legacy }
+     move    : { at: servers.*, key: port, to: connection.port }
+     compute : { at: servers.*, key: url, template: "http://${hostname}:${connection.port}" }
+     compute : { at: "", key: version, value: 2 }
+   </pre>
+
+   Templates refer to keys of the mapping, "${a.b}", or to parameters
+   passed to {@link #apply}, "${$name}"; a template consisting of a single
+   reference yields the referenced value itself. Rule files contain a
+   sequence of such single entry mappings and are compiled via
+   {@link #get}, which caches them until their modification time changes;
+   {@link #create} and the stage methods build pipelines in code.
+
+   Trees passed in are not modified. Only mappings and sequences on the
+   way to a change are copied, everything else is shared with the input,
+   and copies made by one stage are modified in place by later ones.
+   Pipelines are immutable; stage methods return extended copies.
+*/
+public class YAMLTransformation {
+    static final public Class _class = YAMLTransformation.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    /**
+       Computes a value from a mapping; called concurrently if the
+       pipeline is shared, and must not modify the mapping.
+    */
+    static public interface Computation {
+        public Object compute(CallContext context, Map<Object,Object> mapping, Map<String,Object> parameters);
+    }
+
+    static abstract protected class Stage {
+        protected String[] at;
+
+        protected Stage (String at) {
+            this.at = splitPath(at);
+        }
+
+        protected boolean matches (Map<?,?> mapping) {
+            return true;
+        }
+
+        /**
+           Modifies the mapping, which is owned by the run.
+        */
+        abstract protected void apply (Run run, Map<Object,Object> mapping);
+    }
+
+    static protected class Rename extends Stage {
+        protected String from, to;
+        protected Rename (String at, String from, String to) { super(at); this.from = from; this.to = to; }
+        protected boolean matches (Map<?,?> mapping) { return mapping.containsKey(this.from); }
+        protected void apply (Run run, Map<Object,Object> mapping) {
+            // keeps the position of the renamed entry
+            ArrayList<Map.Entry<Object,Object>> entries = new ArrayList<Map.Entry<Object,Object>>(mapping.size());
+            for (Map.Entry<Object,Object> entry : mapping.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<Object,Object>(entry));
+            }
+            mapping.clear();
+            for (Map.Entry<Object,Object> entry : entries) {
+                Object key = entry.getKey();
+                if (this.from.equals(key)) {
+                    mapping.put(this.to, entry.getValue());
+                } else if (this.to.equals(key) == false) {
+                    mapping.put(key, entry.getValue());
+                }
+            }
+        }
+    }
+
+    static protected class Drop extends Stage {
+        protected String key;
+        protected Drop (String at, String key) { super(at); this.key = key; }
+        protected boolean matches (Map<?,?> mapping) { return mapping.containsKey(this.key); }
+        protected void apply (Run run, Map<Object,Object> mapping) { mapping.remove(this.key); }
+    }
+
+    static protected class Move extends Stage {
+        protected String   key;
+        protected String[] to;
+        protected Move (String at, String key, String to) { super(at); this.key = key; this.to = splitPath(to); }
+        protected boolean matches (Map<?,?> mapping) { return mapping.containsKey(this.key); }
+        protected void apply (Run run, Map<Object,Object> mapping) {
+            Object value = mapping.remove(this.key);
+            Map<Object,Object> target = mapping;
+            for (int i = 0; i < this.to.length - 1; i++) {
+                Object child = target.get(this.to[i]);
+                if (child != null && (child instanceof Map) == false) {
+                    CustomaryContext.create((Context)run.context).throwPreConditionViolation(run.context, "Cannot move YAML entry '%(key)' to '%(target)', '%(conflict)' is not a mapping", "key", this.key, "target", joinPath(this.to), "conflict", this.to[i]);
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+                Map<Object,Object> owned = (child == null ? run.create() : run.own((Map<?,?>) child));
+                if (owned != child) { target.put(this.to[i], owned); }
+                target = owned;
+            }
+            target.put(this.to.length == 0 ? this.key : this.to[this.to.length - 1], value);
+        }
+    }
+
+    static protected class Compute extends Stage {
+        protected String      key;
+        protected Computation computation;
+        protected Compute (String at, String key, Computation computation) { super(at); this.key = key; this.computation = computation; }
+        protected void apply (Run run, Map<Object,Object> mapping) {
+            mapping.put(this.key, this.computation.compute(run.context, mapping, run.parameters));
+        }
+    }
+
+    static protected class Constant implements Computation {
+        protected Object value;
+        protected Constant (Object value) { this.value = value; }
+        public Object compute (CallContext context, Map<Object,Object> mapping, Map<String,Object> parameters) { return this.value; }
+    }
+
+    /**
+       Literal text and references, alternating; a reference is a key path
+       or, starting with '$', a parameter name.
+    */
+    static protected class Template implements Computation {
+        protected String[]   literals;
+        protected String[][] references;
+
+        protected Template (CallContext context, String template) {
+            ArrayList<String>   literals   = new ArrayList<String>();
+            ArrayList<String[]> references = new ArrayList<String[]>();
+            int position = 0;
+            int start;
+            while ((start = template.indexOf("${", position)) != -1) {
+                int end = template.indexOf('}', start);
+                if (end == -1) {
+                    CustomaryContext.create((Context)context).throwConfigurationError(context, "Unterminated reference in YAML transformation template '%(template)'", "template", template);
+                    throw (ExceptionConfigurationError) null; // compiler insists
+                }
+                literals.add(template.substring(position, start));
+                String reference = template.substring(start + 2, end);
+                references.add(reference.startsWith("$") ? new String[] { "$", reference.substring(1) } : splitPath(reference));
+                position = end + 1;
+            }
+            literals.add(template.substring(position));
+            this.literals   = literals.toArray(new String[literals.size()]);
+            this.references = references.toArray(new String[references.size()][]);
+        }
+
+        public Object compute (CallContext context, Map<Object,Object> mapping, Map<String,Object> parameters) {
+            if (this.references.length == 1 && this.literals[0].isEmpty() && this.literals[1].isEmpty()) {
+                return this.resolve(this.references[0], mapping, parameters);
+            }
+            StringBuilder result = new StringBuilder(this.literals[0]);
+            for (int r = 0; r < this.references.length; r++) {
+                Object value = this.resolve(this.references[r], mapping, parameters);
+                if (value != null) { result.append(value); }
+                result.append(this.literals[r + 1]);
+            }
+            return result.toString();
+        }
+
+        protected Object resolve (String[] reference, Map<Object,Object> mapping, Map<String,Object> parameters) {
+            if (reference.length == 2 && reference[0].equals("$")) {
+                return parameters.get(reference[1]);
+            }
+            Object node = mapping;
+            for (String key : reference) {
+                if ((node instanceof Map) == false) { return null; }
+                node = ((Map<?,?>) node).get(key);
+            }
+            return node;
+        }
+    }
+
+    /**
+       State of one application: the context, the parameters and the
+       collections copied so far, which may be modified in place.
+    */
+    static protected class Run {
+        protected CallContext                    context;
+        protected Map<String,Object>             parameters;
+        protected IdentityHashMap<Object,Map<Object,Object>> owned_maps  = new IdentityHashMap<Object,Map<Object,Object>>();
+        protected IdentityHashMap<Object,List<Object>>       owned_lists = new IdentityHashMap<Object,List<Object>>();
+
+        protected Run (CallContext context, Map<String,Object> parameters) {
+            this.context    = context;
+            this.parameters = parameters;
+        }
+
+        protected Map<Object,Object> create () {
+            LinkedHashMap<Object,Object> map = new LinkedHashMap<Object,Object>();
+            this.owned_maps.put(map, map);
+            return map;
+        }
+
+        protected Map<Object,Object> own (Map<?,?> map) {
+            Map<Object,Object> owned = this.owned_maps.get(map);
+            if (owned != null) { return owned; }
+            LinkedHashMap<Object,Object> copy = new LinkedHashMap<Object,Object>(map);
+            this.owned_maps.put(copy, copy);
+            return copy;
+        }
+
+        protected List<Object> own (List<?> list) {
+            List<Object> owned = this.owned_lists.get(list);
+            if (owned != null) { return owned; }
+            ArrayList<Object> copy = new ArrayList<Object>(list);
+            this.owned_lists.put(copy, copy);
+            return copy;
+        }
+
+        protected int getCopyCount () {
+            return this.owned_maps.size() + this.owned_lists.size();
+        }
+
+        /**
+           Applies the stage below the given node, returning the node
+           itself if nothing changed, otherwise an owned copy.
+        */
+        protected Object rewrite (Stage stage, Object node, int depth) {
+            if (depth == stage.at.length) {
+                if ((node instanceof Map) == false || stage.matches((Map<?,?>) node) == false) { return node; }
+                Map<Object,Object> owned = this.own((Map<?,?>) node);
+                stage.apply(this, owned);
+                return owned;
+            }
+            String segment = stage.at[depth];
+            if (node instanceof Map) {
+                Map<?,?>           map    = (Map<?,?>) node;
+                Map<Object,Object> result = null;
+                if (segment.equals("*")) {
+                    for (Map.Entry<?,?> entry : map.entrySet()) {
+                        Object child     = entry.getValue();
+                        Object new_child = this.rewrite(stage, child, depth + 1);
+                        if (new_child != child) {
+                            if (result == null) { result = this.own(map); }
+                            result.put(entry.getKey(), new_child);
+                        }
+                    }
+                } else if (map.containsKey(segment)) {
+                    Object child     = map.get(segment);
+                    Object new_child = this.rewrite(stage, child, depth + 1);
+                    if (new_child != child) {
+                        result = this.own(map);
+                        result.put(segment, new_child);
+                    }
+                }
+                return (result == null ? map : result);
+            }
+            if (node instanceof List) {
+                List<?>      list   = (List<?>) node;
+                List<Object> result = null;
+                int from = 0, to = list.size();
+                if (segment.equals("*") == false) {
+                    from = parseIndex(segment, to);
+                    to   = (from == -1 ? -1 : from + 1);
+                }
+                for (int i = from; i < to; i++) {
+                    Object child     = list.get(i);
+                    Object new_child = this.rewrite(stage, child, depth + 1);
+                    if (new_child != child) {
+                        if (result == null) { result = this.own(list); }
+                        result.set(i, new_child);
+                    }
+                }
+                return (result == null ? list : result);
+            }
+            return node;
+        }
+    }
+
+    static protected int parseIndex (String segment, int size) {
+        for (int c = 0; c < segment.length(); c++) {
+            if (segment.charAt(c) < '0' || segment.charAt(c) > '9') { return -1; }
+        }
+        try {
+            int index = Integer.parseInt(segment);
+            return (index < size ? index : -1);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    static protected String[] splitPath (String path) {
+        if (path == null || path.isEmpty()) { return new String[0]; }
+        return path.split("\\.", -1);
+    }
+
+    static protected String joinPath (String[] path) {
+        StringBuilder result = new StringBuilder();
+        for (String segment : path) {
+            if (result.length() != 0) { result.append('.'); }
+            result.append(segment);
+        }
+        return result.toString();
+    }
+
+    static final protected YAMLTransformation EMPTY = new YAMLTransformation(new Stage[0]);
+
+    protected Stage[] stages;
+
+    protected YAMLTransformation (Stage[] stages) {
+        this.stages = stages;
+    }
+
+    static public YAMLTransformation create () {
+        return EMPTY;
+    }
+
+    protected YAMLTransformation append (Stage stage) {
+        Stage[] stages = Arrays.copyOf(this.stages, this.stages.length + 1);
+        stages[this.stages.length] = stage;
+        return new YAMLTransformation(stages);
+    }
+
+    public YAMLTransformation rename (String at, String from, String to) {
+        return this.append(new Rename(at, from, to));
+    }
+
+    public YAMLTransformation drop (String at, String key) {
+        return this.append(new Drop(at, key));
+    }
+
+    public YAMLTransformation move (String at, String key, String to) {
+        return this.append(new Move(at, key, to));
+    }
+
+    public YAMLTransformation compute (String at, String key, Computation computation) {
+        return this.append(new Compute(at, key, computation));
+    }
+
+    public YAMLTransformation then (YAMLTransformation next) {
+        Stage[] stages = Arrays.copyOf(this.stages, this.stages.length + next.stages.length);
+        System.arraycopy(next.stages, 0, stages, this.stages.length, next.stages.length);
+        return new YAMLTransformation(stages);
+    }
+
+    public int getStageCount () {
+        return this.stages.length;
+    }
+
+    /**
+       @param parameters name value pairs, referenced by templates
+    */
+    public Object apply (CallContext context, Object tree, Object... parameters) {
+        return this.apply(context, tree, toMap(context, parameters));
+    }
+
+    public Object apply (CallContext context, Object tree, Map<String,Object> parameters) {
+        Run run = new Run(context, parameters);
+        for (Stage stage : this.stages) {
+            tree = run.rewrite(stage, tree, 0);
+        }
+        if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "Applied '%(stages)' YAML transformation stages, '%(copies)' collections copied", "stages", this.stages.length, "copies", run.getCopyCount()); }
+        return tree;
+    }
+
+    static protected Map<String,Object> toMap (CallContext context, Object[] parameters) {
+        if (parameters == null || parameters.length == 0) { return Collections.<String,Object>emptyMap(); }
+        if (parameters.length % 2 != 0) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "YAML transformation parameters must be name value pairs, got '%(count)' arguments", "count", parameters.length);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        HashMap<String,Object> map = new HashMap<String,Object>();
+        for (int p = 0; p < parameters.length; p += 2) {
+            map.put(String.valueOf(parameters[p]), parameters[p + 1]);
+        }
+        return map;
+    }
+
+    /**
+       Compiles a rule set, a sequence of single entry mappings as shown
+       above.
+    */
+    static public YAMLTransformation compile (CallContext context, YAMLNode rules, String source) {
+        YAMLTransformation result = EMPTY;
+        Object root = rules.getFirstNode(context);
+        if (root == null) { return result; }
+        if ((root instanceof List) == false) { throw invalidRule(context, source, root, "expected a sequence of rules"); }
+        for (Object rule : (List<?>) root) {
+            if ((rule instanceof Map) == false || ((Map<?,?>) rule).size() != 1) { throw invalidRule(context, source, rule, "expected a mapping with one entry"); }
+            Map.Entry<?,?> entry = ((Map<?,?>) rule).entrySet().iterator().next();
+            if ((entry.getValue() instanceof Map) == false) { throw invalidRule(context, source, rule, "expected arguments as mapping"); }
+            Map<?,?> arguments = (Map<?,?>) entry.getValue();
+            String at = argument(context, source, rule, arguments, "at", "");
+            String stage = String.valueOf(entry.getKey());
+            if (stage.equals("rename")) {
+                result = result.rename(at, argument(context, source, rule, arguments, "from", null), argument(context, source, rule, arguments, "to", null));
+            } else if (stage.equals("drop")) {
+                result = result.drop(at, argument(context, source, rule, arguments, "key", null));
+            } else if (stage.equals("move")) {
+                result = result.move(at, argument(context, source, rule, arguments, "key", null), argument(context, source, rule, arguments, "to", null));
+            } else if (stage.equals("compute")) {
+                String key = argument(context, source, rule, arguments, "key", null);
+                if (arguments.containsKey("template")) {
+                    result = result.compute(at, key, new Template(context, argument(context, source, rule, arguments, "template", null)));
+                } else if (arguments.containsKey("value")) {
+                    result = result.compute(at, key, new Constant(arguments.get("value")));
+                } else {
+                    throw invalidRule(context, source, rule, "expected 'template' or 'value'");
+                }
+            } else {
+                throw invalidRule(context, source, rule, "unknown stage '" + stage + "'");
+            }
+        }
+        return result;
+    }
+
+    static protected String argument (CallContext context, String source, Object rule, Map<?,?> arguments, String name, String default_value) {
+        Object value = arguments.get(name);
+        if (value == null) {
+            if (default_value == null) { throw invalidRule(context, source, rule, "missing '" + name + "'"); }
+            return default_value;
+        }
+        return value.toString();
+    }
+
+    static protected ExceptionConfigurationError invalidRule (CallContext context, String source, Object rule, String reason) {
+        CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid YAML transformation rule '%(rule)' in '%(source)': %(reason)", "rule", rule, "source", source, "reason", reason);
+        throw (ExceptionConfigurationError) null; // compiler insists
+    }
+
+    static protected class CacheEntry {
+        protected long               last_modified;
+        protected long               size;
+        protected YAMLTransformation transformation;
+    }
+
+    static protected ConcurrentHashMap<String,CacheEntry> cache = new ConcurrentHashMap<String,CacheEntry>();
+
+    /**
+       Returns the compiled rule set of the file, recompiling it if its
+       modification time or size changed since it was cached.
+    */
+    static public YAMLTransformation get (CallContext context, Path rules) throws InvalidYAML {
+        String key = rules.toAbsolutePath().toString();
+        long last_modified = -1;
+        long size          = -1;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(rules, BasicFileAttributes.class);
+            last_modified = attributes.lastModifiedTime().toMillis();
+            size          = attributes.size();
+        } catch (IOException ioe) {
+            // reported when reading the file
+        }
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.last_modified == last_modified && entry.size == size) {
+            return entry.transformation;
+        }
+        entry = new CacheEntry();
+        entry.last_modified  = last_modified;
+        entry.size           = size;
+        entry.transformation = compile(context, YAMLNode.createYAMLNode(context, rules), key);
+        if (last_modified != -1) { cache.put(key, entry); }
+        if ((notification_level & Notifier.VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.VERBOSE, "Compiled YAML transformation '%(source)' into '%(stages)' stages", "source", key, "stages", entry.transformation.stages.length); }
+        return entry.transformation;
+    }
+}
@@ -21,6 +21,9 @@ import com.sphenon.basics.exception.*;
 import com.sphenon.basics.notification.*;
 import com.sphenon.basics.customary.*;
 
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.MarkedYAMLException;
+
 public class InvalidYAML extends ReturnCode {
     static protected long notification_level;
     static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
@@ -31,6 +34,89 @@ public class InvalidYAML extends ReturnCode {
         super(context, cause, message);
     }
 
+    // diagnostics of parse failures, see createParseFailure
+    protected String source;
+    protected String problem;
+    protected Mark   mark;
+    protected String snippet;
+
+    /**
+       Creates an InvalidYAML for a failed parse. Position and problem are
+       taken from the SnakeYAML exception in the cause chain, if any; only
+       these, not the input, enter the message. The snippet of input around
+       the position is rendered on demand by {@link #getSnippet}.
+    */
+    static public InvalidYAML createParseFailure (CallContext context, Throwable cause, String source) {
+        MarkedYAMLException marked = null;
+        for (Throwable t = cause; t != null && marked == null; t = (t.getCause() == t ? null : t.getCause())) {
+            if (t instanceof MarkedYAMLException) { marked = (MarkedYAMLException) t; }
+        }
+        Mark   mark    = null;
+        String problem = null;
+        if (marked != null) {
+            mark    = (marked.getProblemMark() != null ? marked.getProblemMark() : marked.getContextMark());
+            problem = (marked.getProblem() != null ? marked.getProblem() : marked.getContext());
+        }
+        if (problem == null && cause != null) {
+            problem = cause.getClass().getSimpleName() + (cause.getMessage() == null ? "" : ": " + abbreviate(cause.getMessage(), 200));
+        }
+        Message message = (mark == null ?
+                             DetailMessage.create(context, MessageText.create(context, "Cannot parse YAML '%(source)': %(problem)", "source", source, "problem", problem))
+                           : DetailMessage.create(context, MessageText.create(context, "Cannot parse YAML '%(source)' at line '%(line)', column '%(column)': %(problem)", "source", source, "line", mark.getLine() + 1, "column", mark.getColumn() + 1, "problem", problem)));
+        InvalidYAML invalid_yaml = createInvalidYAML(context, cause, message);
+        invalid_yaml.setDiagnostics(source, problem, mark);
+        return invalid_yaml;
+    }
+
+    protected void setDiagnostics (String source, String problem, Mark mark) {
+        this.source  = source;
+        this.problem = problem;
+        this.mark    = mark;
+    }
+
+    static protected String abbreviate (String text, int length) {
+        return (text.length() <= length ? text : text.substring(0, length) + "...");
+    }
+
+    /**
+       Name of the parsed input, e.g. a file path, or null if unknown.
+    */
+    public String getSource (CallContext context) {
+        return this.source;
+    }
+
+    /**
+       Description of the problem, or null if unknown.
+    */
+    public String getProblem (CallContext context) {
+        return this.problem;
+    }
+
+    /**
+       1-based, or -1 if unknown.
+    */
+    public int getLine (CallContext context) {
+        return (this.mark == null ? -1 : this.mark.getLine() + 1);
+    }
+
+    /**
+       1-based, or -1 if unknown.
+    */
+    public int getColumn (CallContext context) {
+        return (this.mark == null ? -1 : this.mark.getColumn() + 1);
+    }
+
+    /**
+       The line containing the position, shortened to at most 80
+       characters, with a marker below, or null if unknown.
+    */
+    public String getSnippet (CallContext context) {
+        if (this.snippet == null && this.mark != null && this.mark.getBuffer() != null) {
+            this.snippet = this.mark.get_snippet(4, 80);
+        }
+        return this.snippet;
+    }
+
     static public InvalidYAML createInvalidYAML (CallContext context, Throwable cause, Message message) {
         if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "returning 'InvalidYAML' : %(message)", "message", message == null ? (Object) "(no details)" : (Object) message); }
         return new InvalidYAML(context, cause, message);
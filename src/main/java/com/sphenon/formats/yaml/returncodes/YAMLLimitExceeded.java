@@ -0,0 +1,70 @@
+package com.sphenon.formats.yaml.returncodes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import org.yaml.snakeyaml.error.Mark;
+
+/**
+   Parsing was aborted because the input exceeded one of the configured
+   {@link com.sphenon.formats.yaml.YAMLLimits}.
+*/
+public class YAMLLimitExceeded extends InvalidYAML {
+    static final private long serialVersionUID = 1L;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(com.sphenon.basics.context.classes.RootContext.getInitialisationContext(), "com.sphenon.formats.yaml.returncodes.YAMLLimitExceeded"); };
+
+    protected String limit;
+    protected long   maximum;
+
+    protected YAMLLimitExceeded (CallContext context, Throwable cause, Message message, String limit, long maximum) {
+        super(context, cause, message);
+        this.limit   = limit;
+        this.maximum = maximum;
+    }
+
+    /**
+       @param mark position of the offending event, null if unknown
+    */
+    static public YAMLLimitExceeded createYAMLLimitExceeded (CallContext context, Throwable cause, String limit, long maximum, String source, Mark mark) {
+        Message message = (mark == null ?
+                             DetailMessage.create(context, MessageText.create(context, "YAML limit '%(limit)' of '%(maximum)' exceeded in '%(source)'", "limit", limit, "maximum", maximum, "source", source))
+                           : DetailMessage.create(context, MessageText.create(context, "YAML limit '%(limit)' of '%(maximum)' exceeded in '%(source)' at line '%(line)', column '%(column)'", "limit", limit, "maximum", maximum, "source", source, "line", mark.getLine() + 1, "column", mark.getColumn() + 1)));
+        if ((notification_level & Notifier.MORE_VERBOSE) != 0) { CustomaryContext.create(Context.create(context)).sendTrace(context, Notifier.MORE_VERBOSE, "returning 'YAMLLimitExceeded' : %(message)", "message", message); }
+        YAMLLimitExceeded limit_exceeded = new YAMLLimitExceeded(context, cause, message, limit, maximum);
+        limit_exceeded.setDiagnostics(source, "limit " + limit + " of " + maximum + " exceeded", mark);
+        return limit_exceeded;
+    }
+
+    /**
+       Name of the exceeded limit, e.g. "MaxDepth".
+    */
+    public String getLimit (CallContext context) {
+        return this.limit;
+    }
+
+    public long getMaximum (CallContext context) {
+        return this.maximum;
+    }
+
+}